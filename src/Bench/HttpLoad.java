@@ -0,0 +1,230 @@
+package Bench;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import Client.ClientConnection;
+import Common.Constants;
+import Common.HttpRequest;
+import Common.HttpResponse;
+import Common.TransportOption;
+
+// Load generator for httpfs, through the router like httpc. Each client opens
+// a connection, sends its requests on it and closes it; up to N clients run at
+// once. The rates count up to the last response, not the closes, which wait
+// for the FIN of the server. The throughput counts the bodies of the responses.
+public class HttpLoad {
+
+	private final static Logger LOGGER = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+
+	// Clients are many and only wait on their connection.
+	private static final long CLIENT_THREAD_STACK_SIZE = 256 * 1024;
+
+	public static void main(String[] args) {
+		final LoadOption Option = new LoadOption(args);
+		if (Option.Error.isPresent()) {
+			System.out.println(Option.Error.get());
+			System.out.println();
+			PrintHelp();
+			return;
+		}
+		if (!Option.bVerbose) {
+			LOGGER.setLevel(Level.WARNING);
+		}
+
+		final ExecutorService Executor = Executors.newFixedThreadPool(Option.Concurrency,
+				Task -> new Thread(null, Task, "Client", CLIENT_THREAD_STACK_SIZE));
+		final AtomicInteger SucceededCount = new AtomicInteger();
+		final AtomicInteger FailedCount = new AtomicInteger();
+		// Latency of every request sent, in completion order.
+		final long[] Latencies = new long[Option.ConnectionCount * Option.RequestCount];
+		final AtomicInteger LatencyCount = new AtomicInteger();
+		final AtomicLong ReceivedBytes = new AtomicLong();
+		final CountDownLatch Answered = new CountDownLatch(Option.ConnectionCount);
+		final CountDownLatch Released = new CountDownLatch(1);
+
+		final long StartTime = System.nanoTime();
+		final List<Future<?>> Clients = new ArrayList<Future<?>>();
+		for (int i = 0; i < Option.ConnectionCount; i++) {
+			final int ClientIndex = i;
+			Clients.add(Executor.submit(() -> {
+				Optional<ClientConnection> Connection = Optional.empty();
+				int AttemptedCount = 0;
+				try {
+					Connection = Optional.of(new ClientConnection(Constants.SERVER_ADDRESS, Option.Transport));
+					for (; AttemptedCount < Option.RequestCount; AttemptedCount++) {
+						final String Url = Option.Urls
+								.get((ClientIndex * Option.RequestCount + AttemptedCount) % Option.Urls.size());
+						final long RequestTime = System.nanoTime();
+						final Optional<HttpResponse> Response = Connection.get()
+								.Send(new HttpRequest(new String[] { "get", Url }));
+						Latencies[LatencyCount.getAndIncrement()] = System.nanoTime() - RequestTime;
+						if (Response.isPresent() && Response.get().IsValid()) {
+							SucceededCount.incrementAndGet();
+							ReceivedBytes.addAndGet(Response.get().GetContentLength());
+						} else {
+							FailedCount.incrementAndGet();
+						}
+					}
+				} catch (RuntimeException e) {
+					LOGGER.log(Level.WARNING, "ERROR: Client failed: " + e.toString());
+					// The request that threw and the ones after it.
+					FailedCount.addAndGet(Option.RequestCount - AttemptedCount);
+				} finally {
+					Answered.countDown();
+				}
+				// Keep the connection open for the others to be measured at the server.
+				if (Option.HoldTime > 0) {
+					try {
+						Released.await();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+				Connection.ifPresent(ClientConnection::Close);
+			}));
+		}
+
+		try {
+			Answered.await();
+			final long ElapsedTime = System.nanoTime() - StartTime;
+			PrintReport(Option, SucceededCount.get(), FailedCount.get(), ElapsedTime,
+					Arrays.copyOf(Latencies, LatencyCount.get()), ReceivedBytes.get());
+			if (Option.HoldTime > 0) {
+				System.out.println("Holding " + Option.ConnectionCount + " connections open for " + Option.HoldTime
+						+ " s...");
+				Thread.sleep(Option.HoldTime * 1000L);
+			}
+			Released.countDown();
+			for (Future<?> Client : Clients) {
+				Client.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			LOGGER.log(Level.WARNING, "ERROR: Client failed: " + e.getCause().toString());
+		}
+		Executor.shutdown();
+	}
+
+	private static void PrintReport(LoadOption Option, int SucceededCount, int FailedCount, long ElapsedTime,
+			long[] Latencies, long ReceivedBytes) {
+		final double Seconds = ElapsedTime / 1e9;
+		Arrays.sort(Latencies);
+		System.out.println(String.format("%d clients, %d at once, %d requests each: %d OK, %d failed in %.2f s.",
+				Option.ConnectionCount, Option.Concurrency, Option.RequestCount, SucceededCount, FailedCount,
+				Seconds));
+		System.out.println(String.format("%.1f connections/s, %.1f requests/s.", Option.ConnectionCount / Seconds,
+				(SucceededCount + FailedCount) / Seconds));
+		if (Latencies.length > 0) {
+			System.out.println(String.format("Latency: p50 %.1f ms, p99 %.1f ms, max %.1f ms.",
+					GetPercentile(Latencies, 50) / 1e6, GetPercentile(Latencies, 99) / 1e6,
+					Latencies[Latencies.length - 1] / 1e6));
+		}
+		System.out.println(String.format("Received %.1f MB of bodies, %.1f MB/s.", ReceivedBytes / 1e6,
+				ReceivedBytes / 1e6 / Seconds));
+	}
+
+	// Of sorted Values.
+	private static long GetPercentile(long[] Values, int Percent) {
+		return Values[Math.min(Values.length - 1, Values.length * Percent / 100)];
+	}
+
+	public static void PrintHelp() {
+		System.out.println("httpload is a load generator for httpfs.\n"
+				+ "usage: httpload [-v] [-n N] [-c N] [-k N] [-hold S] [transport options] URL [URL...]\n"
+				+ "    -v       Prints debugging messages.\n"
+				+ "    -n N     Number of clients, each on a connection of its own. Default is 1.\n"
+				+ "    -c N     Number of clients running at once. Default is all of them.\n"
+				+ "    -k N     Number of GET requests of each client, on the same connection. Default is 1.\n"
+				+ "             The URLs are requested in turn.\n"
+				+ "    -hold S  Keep every connection open for S seconds once all are answered, to look at the\n"
+				+ "             server under that many connections. Default is 0. All clients then run at once,\n"
+				+ "             whatever -c says, since none finishes before the others are answered.\n"
+				+ "Transport options:\n" + TransportOption.GetHelp());
+	}
+
+	static private class LoadOption {
+		public boolean bVerbose;
+		public int ConnectionCount;
+		public int Concurrency;
+		public int RequestCount;
+		public int HoldTime;
+		public List<String> Urls;
+		public TransportOption Transport;
+		public Optional<String> Error;
+
+		public LoadOption(String[] Arguments) {
+			bVerbose = false;
+			ConnectionCount = 1;
+			Concurrency = 0;
+			RequestCount = 1;
+			HoldTime = 0;
+			Urls = new ArrayList<String>();
+			Transport = new TransportOption();
+			Error = Optional.empty();
+
+			final String[] Remaining = Transport.ParseFrom(Arguments);
+			if (Transport.Error.isPresent()) {
+				Error = Transport.Error;
+				return;
+			}
+			for (int i = 0; i < Remaining.length; ++i) {
+				if (Remaining[i].equals("-v")) {
+					bVerbose = true;
+				} else if (Remaining[i].startsWith("-")) {
+					final String OptionString = Remaining[i].substring(1);
+					if (!(i + 1 < Remaining.length)) {
+						Error = Optional.of("ERROR: Option -" + OptionString + " requires a parameter.");
+						return;
+					}
+					final String ParameterString = Remaining[++i];
+					int Value;
+					try {
+						Value = Integer.parseInt(ParameterString);
+					} catch (NumberFormatException e) {
+						Value = -1;
+					}
+					if (OptionString.equals("n") && Value > 0) {
+						ConnectionCount = Value;
+					} else if (OptionString.equals("c") && Value > 0) {
+						Concurrency = Value;
+					} else if (OptionString.equals("k") && Value > 0) {
+						RequestCount = Value;
+					} else if (OptionString.equals("hold") && Value >= 0) {
+						HoldTime = Value;
+					} else if (OptionString.equals("n") || OptionString.equals("c") || OptionString.equals("k")
+							|| OptionString.equals("hold")) {
+						Error = Optional
+								.of("ERROR: Invalid parameter of -" + OptionString + ": " + ParameterString + ".");
+						return;
+					} else {
+						Error = Optional.of("ERROR: option -" + OptionString + " is unknown.");
+						return;
+					}
+				} else {
+					Urls.add(Remaining[i]);
+				}
+			}
+			if (Urls.isEmpty()) {
+				Error = Optional.of("ERROR: No URL to request.");
+				return;
+			}
+			// Held clients keep their thread until all are answered.
+			if (Concurrency == 0 || Concurrency > ConnectionCount || HoldTime > 0) {
+				Concurrency = ConnectionCount;
+			}
+		}
+	}
+}
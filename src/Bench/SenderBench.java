@@ -0,0 +1,136 @@
+package Bench;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.sun.management.ThreadMXBean;
+
+import Common.ConnectionContext;
+import Common.Constants;
+import Common.DatagramReactor;
+import Common.EUdpPacketType;
+import Common.HttpResponse;
+import Common.SelectiveRepeatSender;
+import Common.TransportOption;
+import Common.UdpMessage;
+
+// What the sender allocates and how fast it goes, without the router: a
+// message is sent to a local peer that ACKs every packet, in place of the
+// router and of the receiver. The peer takes every offered option, so the
+// connection runs with them as if negotiated. Only the bytes allocated by the
+// sending thread are counted; the peer runs on a thread of its own. The
+// buffer pool of the reactor shows how far the window reused its buffers, and
+// that all came back.
+public class SenderBench {
+
+	private final static Logger LOGGER = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+
+	private static final ThreadMXBean THREAD_BEAN = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+	public static void main(String[] args) throws IOException {
+		final TransportOption Option = new TransportOption();
+		final String[] PacketCountStrings = Option.ParseFrom(args);
+		if (Option.Error.isPresent()) {
+			System.out.println(Option.Error.get());
+			System.out.println("usage: SenderBench [transport options] [packets...]\n" + TransportOption.GetHelp());
+			return;
+		}
+		final int[] PacketCounts = PacketCountStrings.length > 0
+				? Arrays.stream(PacketCountStrings).mapToInt(Integer::parseInt).toArray()
+				: new int[] { 20_000, 60_000 };
+		// Late ACKs of retransmitted packets show in the statistics instead.
+		LOGGER.setLevel(Level.SEVERE);
+
+		try (DatagramChannel PeerChannel = DatagramChannel.open()) {
+			PeerChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+			// Everything the sender sends goes to the peer.
+			Constants.ROUTER_ADDRESS = PeerChannel.getLocalAddress();
+			final Thread Peer = new Thread(() -> RunPeer(PeerChannel), "Peer");
+			Peer.setDaemon(true);
+			Peer.start();
+
+			// The first run only warms up.
+			Run(Option, PacketCounts[0]);
+			long FirstAllocatedBytes = 0;
+			for (int i = 0; i < PacketCounts.length; i++) {
+				final long AllocatedBytes = Run(Option, PacketCounts[i]);
+				if (i == 0) {
+					FirstAllocatedBytes = AllocatedBytes;
+				} else {
+					System.out.println(String.format("Marginal: %.1f bytes per packet.",
+							(AllocatedBytes - FirstAllocatedBytes) * 1.0 / (PacketCounts[i] - PacketCounts[0])));
+				}
+			}
+		}
+	}
+
+	// Send a message of PacketCount packets on a connection of its own. Returns
+	// the bytes the sending thread allocated.
+	private static long Run(TransportOption Option, int PacketCount) throws IOException {
+		final ConnectionContext Context = new ConnectionContext(Option);
+		Context.SetNegotiated(Context.GetOffered());
+		final int PayloadSize = UdpMessage.GetPayloadMaxSize(Context.GetHeaderVersion(), Context.GetDatagramSize());
+		// Payloads without trailing zeros, which legacy headers strip.
+		final Path BodyPath = Files.createTempFile("sender-bench", null);
+		final byte[] Body = new byte[PayloadSize * PacketCount];
+		Arrays.fill(Body, (byte) 'x');
+		Files.write(BodyPath, Body);
+		final HttpResponse Response = new HttpResponse(200, BodyPath, Body.length, "text/plain");
+
+		try (DatagramChannel Channel = DatagramChannel.open();
+				DatagramReactor Reactor = new DatagramReactor(Channel, Option.WindowSize)) {
+			Channel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+			Reactor.SetDatagramSize(Context.GetDatagramSize());
+			final InetSocketAddress PeerAddress = (InetSocketAddress) Constants.ROUTER_ADDRESS;
+			final long StartAllocatedBytes = THREAD_BEAN.getCurrentThreadAllocatedBytes();
+			final long StartTime = System.nanoTime();
+			SelectiveRepeatSender.Run(Reactor, PeerAddress.getAddress(), PeerAddress.getPort(), Response, Context);
+			final long ElapsedTime = System.nanoTime() - StartTime;
+			final long AllocatedBytes = THREAD_BEAN.getCurrentThreadAllocatedBytes() - StartAllocatedBytes;
+			System.out.println(String.format("%d packets of %d bytes: %.1f KB allocated, %.1f MB/s.", PacketCount,
+					PayloadSize, AllocatedBytes / 1024.0, Body.length / 1e6 / (ElapsedTime / 1e9)));
+			System.out.println("    " + Context.GetStatistics().toString());
+			System.out.println("    " + Reactor.GetBufferPool().toString());
+			return AllocatedBytes;
+		} finally {
+			Files.delete(BodyPath);
+		}
+	}
+
+	// ACK every Data packet, with the header version it came with, to where it
+	// came from.
+	private static void RunPeer(DatagramChannel Channel) {
+		final ByteBuffer Buffer = ByteBuffer.allocateDirect(UdpMessage.UDP_DATAGRAM_MAX_SIZE);
+		try {
+			while (true) {
+				Buffer.clear();
+				final InetSocketAddress Sender = (InetSocketAddress) Channel.receive(Buffer);
+				Buffer.flip();
+				if (!UdpMessage.IsWellFormed(Buffer) || UdpMessage.PeekPacketType(Buffer) != EUdpPacketType.Data) {
+					continue;
+				}
+				final Optional<UdpMessage> AckMessage = UdpMessage.ConstructAckNew(0,
+						UdpMessage.PeekSequenceNumber(Buffer), Sender.getAddress(), Sender.getPort());
+				if (AckMessage.isPresent()) {
+					AckMessage.get().SetVersion(UdpMessage.PeekVersion(Buffer));
+					Channel.send(ByteBuffer.wrap(AckMessage.get().GenerateRaw()), Sender);
+				}
+			}
+		} catch (ClosedChannelException e) {
+			// Closed once every run is over.
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "ERROR: IOException: " + e.toString());
+		}
+	}
+}
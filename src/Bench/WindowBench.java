@@ -0,0 +1,113 @@
+package Bench;
+
+import java.util.HashMap;
+import java.util.HashSet;
+
+import Common.BufferPool;
+import Common.SequenceSpace;
+import Common.SendWindow;
+import Common.TimerWheel;
+import Common.UdpMessage;
+
+// Cost per packet of the send window bookkeeping, without any I/O: a full
+// window is sent, then ACKed a half at a time. The send window is compared
+// with the hash maps the sender used before it, keyed by boxed SEQs, with a
+// sentinel send time for ACKed packets. Both take one System.nanoTime() per
+// packet sent, whose cost is shown alone, and use the 31-bit SEQs of the default header. The send window
+// also hands out a datagram buffer per packet, as the sender encodes into it;
+// once the window is full the first time, these come back from slid packets,
+// so the pool is only paid for in the first window of each round.
+public class WindowBench {
+
+	private static final long ACKED = Long.MIN_VALUE;
+	private static final int WARMUP_ROUND_COUNT = 3;
+	private static final int ROUND_COUNT = 5;
+	private static final SequenceSpace SPACE = SequenceSpace.ForVersion(UdpMessage.VERSION_4);
+
+	public static void main(String[] args) {
+		final int PacketCount = args.length > 0 ? Integer.parseInt(args[0]) : 5_000_000;
+		final int WindowSize = args.length > 1 ? Integer.parseInt(args[1]) : 512;
+		System.out.println(PacketCount + " packets, window of " + WindowSize + ", ACKed a half window at a time.");
+		long Checksum = 0;
+		for (int i = 0; i < WARMUP_ROUND_COUNT + ROUND_COUNT; i++) {
+			final long StartTime = System.nanoTime();
+			Checksum += RunClock(PacketCount);
+			final long ClockTime = System.nanoTime();
+			Checksum += RunMaps(PacketCount, WindowSize);
+			final long MapTime = System.nanoTime();
+			Checksum += RunWindow(PacketCount, WindowSize);
+			final long WindowTime = System.nanoTime();
+			if (i >= WARMUP_ROUND_COUNT) {
+				System.out.println(String.format(
+						"Clock alone: %.1f ns/packet. Hash maps: %.1f ns/packet. Send window: %.1f ns/packet.",
+						(ClockTime - StartTime) * 1.0 / PacketCount, (MapTime - ClockTime) * 1.0 / PacketCount,
+						(WindowTime - MapTime) * 1.0 / PacketCount));
+			}
+		}
+		// Keeps the work from being optimized away.
+		System.out.println("Checksum: " + (Checksum & 0xFF) + ".");
+	}
+
+	private static long RunClock(int PacketCount) {
+		long Checksum = 0;
+		for (int i = 0; i < PacketCount; i++) {
+			Checksum += System.nanoTime();
+		}
+		return Checksum;
+	}
+
+	private static long RunMaps(int PacketCount, int WindowSize) {
+		final SequenceSpace Space = SPACE;
+		final HashMap<Integer, Long> SendTimes = new HashMap<Integer, Long>();
+		final HashSet<Integer> Retransmitted = new HashSet<Integer>();
+		int BaseSequenceNumber = 0;
+		int NextSequenceNumber = 0;
+		long Checksum = 0;
+		for (int i = 0; i < PacketCount; i++) {
+			SendTimes.put(NextSequenceNumber, System.nanoTime());
+			NextSequenceNumber = Space.Next(NextSequenceNumber);
+			if (SendTimes.size() < WindowSize) {
+				continue;
+			}
+			for (int j = 0; j < WindowSize / 2; j++) {
+				final int SequenceNumber = Space.Add(BaseSequenceNumber, j);
+				if (!Retransmitted.contains(SequenceNumber)) {
+					Checksum += SendTimes.get(SequenceNumber);
+				}
+				SendTimes.put(SequenceNumber, ACKED);
+			}
+			while (SendTimes.containsKey(BaseSequenceNumber) && SendTimes.get(BaseSequenceNumber) == ACKED) {
+				SendTimes.remove(BaseSequenceNumber);
+				Retransmitted.remove(BaseSequenceNumber);
+				BaseSequenceNumber = Space.Next(BaseSequenceNumber);
+			}
+		}
+		return Checksum;
+	}
+
+	private static long RunWindow(int PacketCount, int WindowSize) {
+		final SequenceSpace Space = SPACE;
+		final BufferPool Pool = new BufferPool(WindowSize, Long.MAX_VALUE);
+		final SendWindow Window = new SendWindow(Space, 0, WindowSize, Pool, () -> {
+		});
+		long Checksum = 0;
+		for (int i = 0; i < PacketCount; i++) {
+			Window.GetNextDatagram();
+			Window.Add(System.nanoTime());
+			if (!Window.IsFull()) {
+				continue;
+			}
+			for (int j = 0; j < WindowSize / 2; j++) {
+				final int SequenceNumber = Space.Add(Window.GetBaseSequenceNumber(), j);
+				if (!Window.IsRetransmitted(SequenceNumber)) {
+					Checksum += Window.GetSendTime(SequenceNumber);
+				}
+				Window.OnAcked(SequenceNumber);
+			}
+			Window.Slide();
+		}
+		Window.Close(TimerWheel.GetShared());
+		Pool.close();
+		return Checksum;
+	}
+}
@@ -4,17 +4,32 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.SocketException;
 import java.nio.channels.DatagramChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Optional;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import Common.ConnectionContext;
 import Common.Constants;
 import Common.DatagramChannelUtils;
+import Common.DatagramReactor;
+import Common.EHttpOperation;
+import Common.HandshakeOptions;
 import Common.HttpMessage;
 import Common.HttpRequest;
 import Common.HttpResponse;
+import Common.RttEstimator;
 import Common.SelectiveRepeatReceiver;
 import Common.SelectiveRepeatSender;
+import Common.SequenceSpace;
+import Common.StreamMultiplexer;
+import Common.TransportOption;
 import Common.UdpMessage;
 
 public class ClientConnection {
@@ -23,176 +38,394 @@ public class ClientConnection {
 
 	private InetSocketAddress LocalSocketAddress;
 	private InetSocketAddress RemoteSocketAddress;
+	// Main server port, where every connection starts.
+	final private InetSocketAddress ServerSocketAddress;
 
 	private int LocalSequenceNumber;
 	private int RemoteSequenceNumber;
 
-	public ClientConnection(InetSocketAddress SocketAddress) {
+	final private TransportOption Option;
+	private ConnectionContext Context;
+	// Open between the handshake and the teardown.
+	private DatagramChannel Channel;
+	private DatagramReactor Reactor;
+	// Start of the response found in the SYNACK, if the request went in the SYN.
+	private Optional<byte[]> EarlyResponse;
+	// Streams of a multiplexed connection, numbered from 0 in each connection.
+	private StreamMultiplexer Mux;
+	private int NextStreamId;
+
+	public ClientConnection(InetSocketAddress SocketAddress, TransportOption Option) {
 		this.RemoteSocketAddress = SocketAddress;
+		this.ServerSocketAddress = SocketAddress;
+		this.Option = Option;
+		this.EarlyResponse = Optional.empty();
 	}
 
-	public Optional<HttpResponse> Send(HttpRequest Request) {
-		// Get SYN.
+	// Handshake on a new channel. The connection then stays open for as many
+	// requests as the server keeps it alive. A small GET goes in the SYN.
+	private Boolean Open(HttpRequest Request) throws IOException {
+		// RTT and congestion are tracked per connection, starting with the handshake.
+		Context = new ConnectionContext(Option);
+		final RttEstimator Estimator = Context.GetEstimator();
+		RemoteSocketAddress = ServerSocketAddress;
+		NextStreamId = 0;
+
+		// Get SYN. It offers the options this client supports. A GET is safe for the
+		// server to answer even if the SYN is replayed. The SYN has a legacy header,
+		// which is fine as a request does not end with zeros, but the SYNACK needs a
+		// later one.
+		final HandshakeOptions Offered = Context.GetOffered();
+		final byte[] RequestBytes = Request.GetAsBytes();
+		Offered.bEarlyData = Offered.bEarlyData && Request.GetOperation() == EHttpOperation.get
+				&& Offered.HeaderVersion >= UdpMessage.VERSION_2;
+		byte[] SynPayload = Offered.ToBytes();
+		if (Offered.bEarlyData && SynPayload.length + RequestBytes.length <= UdpMessage.PAYLOAD_MAX_SIZE) {
+			SynPayload = Arrays.copyOf(SynPayload, SynPayload.length + RequestBytes.length);
+			System.arraycopy(RequestBytes, 0, SynPayload, SynPayload.length - RequestBytes.length, RequestBytes.length);
+		} else {
+			Offered.bEarlyData = false;
+			SynPayload = Offered.ToBytes();
+		}
 		final Optional<UdpMessage> SynMsg = UdpMessage.ConstructSynNew(RemoteSocketAddress.getAddress(),
-				RemoteSocketAddress.getPort());
+				RemoteSocketAddress.getPort(), SynPayload);
 		if (SynMsg.isEmpty()) {
-			return Optional.empty();
+			return false;
 		}
 
 		// Get client SEQ from SYN.
 		LocalSequenceNumber = SynMsg.get().GetSequenceNumber();
 
-		Optional<HttpResponse> Response = null;
-		try (DatagramChannel Channel = DatagramChannel.open();) {
-			// Channel configuration.
-			Channel.configureBlocking(false);
-			// Port 0 will select any available one.
-			Channel.bind(new InetSocketAddress(0));
-			// Get local port.
-			LocalSocketAddress = (InetSocketAddress) Channel.getLocalAddress();
-
-			// Send SYN and try to receive SYNACK.
-			Optional<UdpMessage> SynAckMsg = Optional.empty();
-			for (int i = 0; i < Constants.RETRANSMISSION_ATTEMPTS; i++) {
-				LOGGER.log(Level.INFO, "Sending: " + SynMsg.get());
-				DatagramChannelUtils.Send(Channel, Constants.ROUTER_ADDRESS, SynMsg.get());
-
-				LOGGER.log(Level.INFO, "Waiting for SYNACK on " + LocalSocketAddress.toString() + "...");
-				SynAckMsg = DatagramChannelUtils.Receive(Channel, Constants.DEFAULT_TIMEOUT);
-
-				// If received, break.
-				if (SynAckMsg.isPresent()) {
-					if (SynAckMsg.get().IsSynAck()) {
-						break;
-					} else {
-						SynAckMsg = Optional.empty();
+		Channel = DatagramChannel.open();
+		Reactor = new DatagramReactor(Channel, Option.WindowSize);
+		// Port 0 will select any available one.
+		Channel.bind(new InetSocketAddress(0));
+		// Get local port.
+		LocalSocketAddress = (InetSocketAddress) Channel.getLocalAddress();
+
+		// Send SYN and try to receive SYNACK.
+		Optional<UdpMessage> SynAckMsg = Optional.empty();
+		for (int i = 0; i < Constants.RETRANSMISSION_ATTEMPTS; i++) {
+			LOGGER.log(Level.INFO, "Sending: " + SynMsg.get());
+			final long SendTime = System.nanoTime();
+			DatagramChannelUtils.Send(Reactor, Constants.ROUTER_ADDRESS, SynMsg.get());
+
+			LOGGER.log(Level.INFO, "Waiting for SYNACK on " + LocalSocketAddress.toString() + "...");
+			SynAckMsg = DatagramChannelUtils.Receive(Reactor, Estimator.GetTimeout());
+
+			// If received, break.
+			if (SynAckMsg.isPresent()) {
+				if (SynAckMsg.get().IsSynAck()) {
+					// Only the first SYN gives an unambiguous sample.
+					if (i == 0) {
+						Estimator.AddSample(System.nanoTime() - SendTime);
 					}
+					break;
+				} else {
+					SynAckMsg = Optional.empty();
 				}
+			} else {
+				Estimator.Backoff();
 			}
+		}
 
-			if (SynAckMsg.isEmpty()) {
-				LOGGER.log(Level.WARNING, "Connection attemp timeout: SYNACK never received.");
-				return Optional.empty();
-			}
+		if (SynAckMsg.isEmpty()) {
+			LOGGER.log(Level.WARNING, "Connection attemp timeout: SYNACK never received.");
+			return false;
+		}
 
-			LOGGER.log(Level.INFO, "Received: " + SynAckMsg.get() + ".");
+		LOGGER.log(Level.INFO, "Received: " + SynAckMsg.get() + ".");
 
-			// Update address to avoid main server port.
-			RemoteSocketAddress = SynAckMsg.get().GetSocketAddress();
-			// Get server SEQ from SYNACK.
-			RemoteSequenceNumber = SynAckMsg.get().GetSequenceNumber();
+		// Update address to avoid main server port.
+		RemoteSocketAddress = SynAckMsg.get().GetSocketAddress();
+		// Get server SEQ from SYNACK.
+		RemoteSequenceNumber = SynAckMsg.get().GetSequenceNumber();
+		// A legacy server answers without options, which falls back to the legacy
+		// header.
+		final byte[] SynAckPayload = SynAckMsg.get().GetPayload().orElse(new byte[0]);
+		Context.SetNegotiated(Offered.Negotiate(HandshakeOptions.FromBytes(SynAckPayload)));
+		LOGGER.log(Level.INFO, "Negotiated: " + Context.GetNegotiated() + ".");
+		Reactor.SetDatagramSize(Context.GetDatagramSize());
 
-			// Send ACK.
-			// Don't need to retransmit since received will know the connection is
-			// established when it will receive Data.
-			final Optional<UdpMessage> AckMsg = UdpMessage.ConstructAckNew(0, 0, RemoteSocketAddress.getAddress(),
-					RemoteSocketAddress.getPort());
-			if (AckMsg.isEmpty()) {
-				return Optional.empty();
-			}
-			LOGGER.log(Level.INFO, "Sending: " + AckMsg.get() + ".");
-			DatagramChannelUtils.Send(Channel, Constants.ROUTER_ADDRESS, AckMsg.get());
+		// Send ACK.
+		// Don't need to retransmit since received will know the connection is
+		// established when it will receive Data. If the request went in the SYN,
+		// there is no Data: the receiver sends it again on a repeated SYNACK. It ACKs
+		// the server SEQ, so that the server does not mistake it for the last ACK of
+		// the teardown. A server with a cookie in its SYNACK kept no state: the ACK
+		// gives it back the SYN, but for the request, which it did not answer, and
+		// with the MAC of the cookie.
+		final HandshakeOptions SynAckOptions = HandshakeOptions.FromBytes(SynAckPayload);
+		final Boolean bCookie = SynAckOptions.bCookie;
+		final HandshakeOptions Echoed = HandshakeOptions.FromBytes(Offered.ToBytes());
+		Echoed.bCookie = true;
+		Echoed.CookieMac = SynAckOptions.CookieMac;
+		final Optional<UdpMessage> AckMsg = bCookie
+				? UdpMessage.ConstructAckNew(LocalSequenceNumber, RemoteSequenceNumber,
+						RemoteSocketAddress.getAddress(), RemoteSocketAddress.getPort(), Echoed.ToBytes())
+				: UdpMessage.ConstructAckNew(0, RemoteSequenceNumber, RemoteSocketAddress.getAddress(),
+						RemoteSocketAddress.getPort());
+		if (AckMsg.isEmpty()) {
+			return false;
+		}
+		if (bCookie) {
+			AckMsg.get().SetVersion(UdpMessage.VERSION_2);
+			AckMsg.get().SetFlag(UdpMessage.FLAG_COOKIE_ECHO);
+		}
+		LOGGER.log(Level.INFO, "Sending: " + AckMsg.get() + ".");
+		DatagramChannelUtils.Send(Reactor, Constants.ROUTER_ADDRESS, AckMsg.get());
+		Context.SetHandshakeAck(AckMsg.get());
 
-			// Initialize RDT-Sender to send Request..
-			LOGGER.log(Level.INFO, "Starting RDT to " + RemoteSocketAddress.toString() + ".");
-			SelectiveRepeatSender.Run(Channel, RemoteSocketAddress.getAddress(), RemoteSocketAddress.getPort(),
-					LocalSequenceNumber, Request, true);
-
-			// Initialize RDT-Receiver to receive Response.
-			LOGGER.log(Level.INFO, "Done sending request. Waiting for response...");
-			final Optional<HttpMessage> ReceivedMessage = SelectiveRepeatReceiver.Run(Channel, RemoteSequenceNumber);
-			if (ReceivedMessage.isPresent()) {
-				try {
-					LOGGER.log(Level.INFO, "Done receiving response.");
-					Response = Optional.of((HttpResponse) ReceivedMessage.get());
-				} catch (ClassCastException e) {
-					LOGGER.log(Level.WARNING, "Received message is not a HTTP message, but not a reply.");
-					return Optional.empty();
+		// Both directions continue from the handshake SEQ. The request in the SYN and
+		// the response in the SYNACK each take the first one.
+		final SequenceSpace Space = Context.GetSequenceSpace();
+		if (Context.GetNegotiated().bEarlyData) {
+			LOGGER.log(Level.INFO, "Request answered in SYNACK.");
+			EarlyResponse = Optional.of(HandshakeOptions.GetEarlyData(SynAckPayload));
+			Context.SetSendSequenceNumber(Space.Next(LocalSequenceNumber));
+			Context.SetReceiveSequenceNumber(Space.Next(RemoteSequenceNumber));
+		} else {
+			Context.SetSendSequenceNumber(LocalSequenceNumber);
+			Context.SetReceiveSequenceNumber(RemoteSequenceNumber);
+		}
+		return true;
+	}
+
+	public Optional<HttpResponse> Send(HttpRequest Request) {
+		return Send(List.of(Request)).get(0);
+	}
+
+	// Send Requests and return their responses, in the same order. A response is
+	// empty if it could not be received. Over a multiplexed connection, the
+	// requests are sent at once and their responses come back as they are ready.
+	public List<Optional<HttpResponse>> Send(List<HttpRequest> Requests) {
+		final List<Optional<HttpResponse>> Responses = new ArrayList<Optional<HttpResponse>>();
+		while (Responses.size() < Requests.size()) {
+			final HttpRequest Request = Requests.get(Responses.size());
+			try {
+				// Reuse the connection of the previous request if there is one.
+				if (Reactor == null && !Open(Request)) {
+					Release();
 				}
+			} catch (SocketException e1) {
+				LOGGER.log(Level.WARNING, "ERROR: SocketException: " + e1.toString());
+				Release();
+			} catch (IOException e2) {
+				LOGGER.log(Level.WARNING, "ERROR: IOException: " + e2.toString());
+				Release();
+			}
+			if (Reactor == null) {
+				Responses.add(Optional.empty());
+			} else if (Context.IsMultiplexed()) {
+				// Without keep-alive, the server only serves one request per connection.
+				final int End = Context.IsKeepAlive() ? Requests.size() : Responses.size() + 1;
+				Responses.addAll(SendStreams(Requests.subList(Responses.size(), End)));
+			} else {
+				Responses.add(SendOne(Request));
+			}
+		}
+		return Responses;
+	}
+
+	// Send Requests on streams of their own, unless the first one went in the SYN.
+	private List<Optional<HttpResponse>> SendStreams(List<HttpRequest> Requests) {
+		if (Mux == null) {
+			Mux = new StreamMultiplexer(Reactor, RemoteSocketAddress.getAddress(), RemoteSocketAddress.getPort(),
+					Context);
+		}
+		final HashMap<Integer, Integer> IndexByStreamId = new HashMap<Integer, Integer>();
+		for (HttpRequest Request : Requests) {
+			final int StreamId = NextStreamId;
+			NextStreamId = (NextStreamId + 1) & UdpMessage.STREAM_ID_MAX;
+			IndexByStreamId.put(StreamId, IndexByStreamId.size());
+			Mux.Expect(StreamId, EarlyResponse.orElse(new byte[0]), GetBodyDirectory(Request));
+			if (EarlyResponse.isPresent()) {
+				EarlyResponse = Optional.empty();
 			} else {
+				LOGGER.log(Level.INFO, "Sending request on stream " + StreamId + ".");
+				Mux.Send(StreamId, Request);
+			}
+		}
+
+		final List<Optional<HttpResponse>> Responses = new ArrayList<Optional<HttpResponse>>(
+				Collections.nCopies(Requests.size(), Optional.empty()));
+		Boolean bFailed = false;
+		for (int i = 0; i < Requests.size(); i++) {
+			final Optional<StreamMultiplexer.StreamMessage> ReceivedMessage = Mux.Receive();
+			if (ReceivedMessage.isEmpty()) {
 				LOGGER.log(Level.WARNING, "Received message is not a valid HTTP message.");
-				return Optional.empty();
+				bFailed = true;
+				break;
 			}
+			final Integer Index = IndexByStreamId.get(ReceivedMessage.get().GetStreamId());
+			if (Index == null || !(ReceivedMessage.get().GetMessage() instanceof HttpResponse)) {
+				LOGGER.log(Level.WARNING, "Received message is not a HTTP message, but not a reply.");
+				bFailed = true;
+				break;
+			}
+			LOGGER.log(Level.INFO, "Done receiving response on stream " + ReceivedMessage.get().GetStreamId() + ".");
+			Responses.set(Index, Optional.of((HttpResponse) ReceivedMessage.get().GetMessage()));
+		}
+		// Make sure the requests are ACKed, so that no late ACK is taken for the ACK of
+		// our FIN.
+		bFailed = bFailed || !Mux.Flush();
 
-			// End connection.
-			LOGGER.log(Level.INFO, "Ending connection...");
-			Boolean bSuccesBoolean = false;
-			Optional<UdpMessage> Ack1Msg = Optional.empty();
-			for (int i = 0; i < Constants.RETRANSMISSION_ATTEMPTS; i++) {
-				if (Ack1Msg.isEmpty()) {
-					// Sending FIN.
-					final Optional<UdpMessage> Fin1Msg = UdpMessage.ConstructFinNew(RemoteSocketAddress.getAddress(),
-							RemoteSocketAddress.getPort());
-					if (Fin1Msg.isEmpty()) {
-						continue;
-					}
-					LOGGER.log(Level.INFO, "Sending: " + Fin1Msg.get() + ".");
-					DatagramChannelUtils.Send(Channel, Constants.ROUTER_ADDRESS, Fin1Msg.get());
-
-					// Receiving ACK.
-					LOGGER.log(Level.INFO, "Waiting for ACK on " + LocalSocketAddress.toString() + "...");
-					Ack1Msg = DatagramChannelUtils.Receive(Channel, Constants.DEFAULT_TIMEOUT);
-					if (Ack1Msg.isEmpty()) {
-						continue;
-					} else {
-						if (!Ack1Msg.get().IsAck()) {
-							Ack1Msg = Optional.empty();
-							continue;
-						}
-					}
-				}
-				LOGGER.log(Level.INFO, "Received: " + Ack1Msg.get() + ".");
+		// Without keep-alive, the server expects FIN right after the response.
+		if (bFailed || !Context.IsKeepAlive()) {
+			Close();
+		}
+		return Responses;
+	}
+
+	// A response to be written to a file is received next to it, so that it never
+	// is in memory and writing it is only a move. Other responses stay in memory.
+	private static Optional<Path> GetBodyDirectory(HttpRequest Request) {
+		return Request.GetOutputFileName().map(Name -> Paths.get(Name).toAbsolutePath().getParent());
+	}
+
+	// Send Request and wait for its response, one message at a time.
+	private Optional<HttpResponse> SendOne(HttpRequest Request) {
+		Optional<HttpResponse> Response = Optional.empty();
+		// Initialize RDT-Sender to send Request, unless it went in the SYN.
+		final byte[] Prefix = EarlyResponse.orElse(new byte[0]);
+		if (EarlyResponse.isEmpty()) {
+			LOGGER.log(Level.INFO, "Starting RDT to " + RemoteSocketAddress.toString() + ".");
+			SelectiveRepeatSender.Run(Reactor, RemoteSocketAddress.getAddress(), RemoteSocketAddress.getPort(), Request,
+					Context);
+		}
+		EarlyResponse = Optional.empty();
 
-				// Receiving FIN.
-				LOGGER.log(Level.INFO, "Waiting for FIN on " + LocalSocketAddress.toString() + "...");
-				final Optional<UdpMessage> Fin2Msg = DatagramChannelUtils.Receive(Channel, Constants.DEFAULT_TIMEOUT);
-				if (Fin2Msg.isEmpty()) {
+		// Initialize RDT-Receiver to receive Response.
+		LOGGER.log(Level.INFO, "Done sending request. Waiting for response...");
+		Context.SetBodyDirectory(GetBodyDirectory(Request));
+		final Optional<HttpMessage> ReceivedMessage = SelectiveRepeatReceiver.Run(Reactor, Context, Prefix);
+		if (ReceivedMessage.isPresent()) {
+			try {
+				LOGGER.log(Level.INFO, "Done receiving response.");
+				Response = Optional.of((HttpResponse) ReceivedMessage.get());
+			} catch (ClassCastException e) {
+				LOGGER.log(Level.WARNING, "Received message is not a HTTP message, but not a reply.");
+			}
+		} else {
+			LOGGER.log(Level.WARNING, "Received message is not a valid HTTP message.");
+		}
+
+		// Without keep-alive, the server expects FIN right after the response.
+		if (Response.isEmpty() || !Context.IsKeepAlive()) {
+			Close();
+		}
+		return Response;
+	}
+
+	// End the connection, if open.
+	public void Close() {
+		if (Reactor == null) {
+			return;
+		}
+		final RttEstimator Estimator = Context.GetEstimator();
+
+		// End connection.
+		LOGGER.log(Level.INFO, "Ending connection...");
+		Boolean bSuccesBoolean = false;
+		Optional<UdpMessage> Ack1Msg = Optional.empty();
+		// Server FIN received while waiting for the ACK of ours.
+		Optional<UdpMessage> EarlyFinMsg = Optional.empty();
+		for (int i = 0; i < Constants.RETRANSMISSION_ATTEMPTS; i++) {
+			if (Ack1Msg.isEmpty()) {
+				// Sending FIN.
+				final Optional<UdpMessage> Fin1Msg = UdpMessage.ConstructFinNew(RemoteSocketAddress.getAddress(),
+						RemoteSocketAddress.getPort());
+				if (Fin1Msg.isEmpty()) {
 					continue;
-				} else {
-					if (Fin2Msg.get().IsAck()) {
-						Ack1Msg = Fin2Msg;
-						continue;
-					}
 				}
-				LOGGER.log(Level.INFO, "Received: " + Fin2Msg.get() + ".");
+				LOGGER.log(Level.INFO, "Sending: " + Fin1Msg.get() + ".");
+				DatagramChannelUtils.Send(Reactor, Constants.ROUTER_ADDRESS, Fin1Msg.get());
 
-				// Sending ACK.
-				final Optional<UdpMessage> Ack2Msg = UdpMessage.ConstructAckNew(0, 0, RemoteSocketAddress.getAddress(),
-						RemoteSocketAddress.getPort());
-				if (Ack2Msg.isEmpty()) {
+				// Receiving ACK.
+				LOGGER.log(Level.INFO, "Waiting for ACK on " + LocalSocketAddress.toString() + "...");
+				Ack1Msg = DatagramChannelUtils.Receive(Reactor, Estimator.GetTimeout());
+				if (Ack1Msg.isEmpty()) {
+					Estimator.Backoff();
+					continue;
+				} else if (Ack1Msg.get().IsFin()) {
+					// The server only sends FIN once it has ours, so it overtook the ACK.
+					EarlyFinMsg = Ack1Msg;
+				} else if (!Ack1Msg.get().IsAck()) {
 					Ack1Msg = Optional.empty();
 					continue;
 				}
-				LOGGER.log(Level.INFO, "Sending: " + Ack2Msg.get() + ".");
-				DatagramChannelUtils.Send(Channel, Constants.ROUTER_ADDRESS, Ack2Msg.get());
-
-				// Check if another packet will come.
-				final Optional<UdpMessage> TestMsg = DatagramChannelUtils.Receive(Channel, Constants.FIN_TIMEOUT);
-				if (TestMsg.isEmpty()) {
-					// If not, we are done.
-					bSuccesBoolean = true;
-					break;
-				} else {
-					// If so, try again.
-					if (TestMsg.get().IsAck()) {
-						Ack1Msg = TestMsg;
-					} else {
-						Ack1Msg = Optional.empty();
-					}
-				}
 			}
+			LOGGER.log(Level.INFO, "Received: " + Ack1Msg.get() + ".");
 
-			if (bSuccesBoolean) {
-				LOGGER.log(Level.INFO, "Successfully closed connection with: " + RemoteSocketAddress.toString() + ".");
+			// Receiving FIN.
+			LOGGER.log(Level.INFO, "Waiting for FIN on " + LocalSocketAddress.toString() + "...");
+			final Optional<UdpMessage> Fin2Msg = EarlyFinMsg.isPresent() ? EarlyFinMsg
+					: DatagramChannelUtils.Receive(Reactor, Estimator.GetTimeout());
+			if (Fin2Msg.isEmpty()) {
+				Estimator.Backoff();
+				continue;
 			} else {
-				LOGGER.log(Level.WARNING, "Failed to closed connection with: " + RemoteSocketAddress.toString() + ".");
+				if (Fin2Msg.get().IsAck()) {
+					Ack1Msg = Fin2Msg;
+					continue;
+				}
 			}
-		} catch (SocketException e1) {
-			LOGGER.log(Level.WARNING, "ERROR: SocketException: " + e1.toString());
-		} catch (IOException e2) {
-			LOGGER.log(Level.WARNING, "ERROR: IOException: " + e2.toString());
+			LOGGER.log(Level.INFO, "Received: " + Fin2Msg.get() + ".");
+
+			// Sending ACK.
+			final Optional<UdpMessage> Ack2Msg = UdpMessage.ConstructAckNew(0, 0, RemoteSocketAddress.getAddress(),
+					RemoteSocketAddress.getPort());
+			if (Ack2Msg.isEmpty()) {
+				Ack1Msg = Optional.empty();
+				continue;
+			}
+			LOGGER.log(Level.INFO, "Sending: " + Ack2Msg.get() + ".");
+			DatagramChannelUtils.Send(Reactor, Constants.ROUTER_ADDRESS, Ack2Msg.get());
+
+			// Check if another packet will come. The server FIN again means our ACK was
+			// lost, so ACK it again. The server is done with our FIN, so anything else
+			// is a late duplicate: going back to sending FIN would wait for a FIN that
+			// never comes.
+			Optional<UdpMessage> TestMsg = DatagramChannelUtils.Receive(Reactor, Constants.FIN_TIMEOUT);
+			while (TestMsg.isPresent() && ++i < Constants.RETRANSMISSION_ATTEMPTS) {
+				if (TestMsg.get().IsFin()) {
+					LOGGER.log(Level.INFO, "Sending: " + Ack2Msg.get() + ".");
+					DatagramChannelUtils.Send(Reactor, Constants.ROUTER_ADDRESS, Ack2Msg.get());
+				}
+				TestMsg = DatagramChannelUtils.Receive(Reactor, Constants.FIN_TIMEOUT);
+			}
+			// If not, we are done.
+			bSuccesBoolean = TestMsg.isEmpty();
+			break;
 		}
 
-		return Response;
+		if (bSuccesBoolean) {
+			LOGGER.log(Level.INFO, "Successfully closed connection with: " + RemoteSocketAddress.toString() + ".");
+		} else {
+			LOGGER.log(Level.WARNING, "Failed to closed connection with: " + RemoteSocketAddress.toString() + ".");
+		}
+		LOGGER.log(Level.INFO, "Statistics: " + Context.GetStatistics().toString() + " "
+				+ Reactor.GetBufferPool().toString());
+
+		Release();
+	}
+
+	private void Release() {
+		if (Mux != null) {
+			Mux.Close();
+		}
+		try {
+			if (Reactor != null) {
+				Reactor.close();
+			}
+			if (Channel != null) {
+				Channel.close();
+			}
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "ERROR: IOException: " + e.toString());
+		}
+		Mux = null;
+		Reactor = null;
+		Channel = null;
 	}
 }
@@ -1,11 +1,13 @@
 package Client;
 
 import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.Optional;
 
 import Common.Constants;
 import Common.HttpRequest;
 import Common.HttpResponse;
+import Common.TransportOption;
 
 public class HttpC {
 	public static void main(String args[]) {
@@ -19,7 +21,16 @@ public class HttpC {
 			return;
 		}
 
-		HttpRequest HttpRequest = new HttpRequest(args);
+		// Transport options are not part of the HTTP request.
+		TransportOption Option = new TransportOption();
+		final String[] HttpArguments = Option.ParseFrom(args);
+		if (Option.Error.isPresent()) {
+			System.out.println(Option.Error.get());
+			PrintHelp("");
+			return;
+		}
+
+		HttpRequest HttpRequest = new HttpRequest(HttpArguments);
 
 		if (!HttpRequest.IsValid()) {
 			if (HttpRequest.GetError().isPresent()) {
@@ -32,37 +43,52 @@ public class HttpC {
 		}
 
 		Optional<HttpResponse> Response;
-		ClientConnection ClientConnection = new ClientConnection(Constants.SERVER_ADDRESS);
+		ClientConnection ClientConnection = new ClientConnection(Constants.SERVER_ADDRESS, Option);
 		Response = ClientConnection.Send(HttpRequest);
 
 		if (Response.isEmpty() || !Response.get().IsValid()) {
 			// PrintHelp("");
+			ClientConnection.Close();
 			return;
 		}
 
 		while (Response.get().IsRedirect()) {
 			final Optional<String> RedirectLocation = Response.get().GetRedirectLocation();
+			Response.get().DiscardBody();
 			if (RedirectLocation.isPresent()) {
 				HttpRequest.Redirect(RedirectLocation.get());
 			} else {
 				System.out.println("ERROR: Could not redirect.");
 			}
 			if (!HttpRequest.IsValid()) {
+				ClientConnection.Close();
+				return;
+			}
+			// Follow the redirect on the same connection if the server keeps it alive.
+			Response = ClientConnection.Send(HttpRequest);
+			if (Response.isEmpty() || !Response.get().IsValid()) {
+				ClientConnection.Close();
 				return;
 			}
+		}
+		ClientConnection.Close();
+
+		// The body was received next to the output file, so this is only a move.
+		if (HttpRequest.GetOutputFileName().isPresent()) {
 			try {
-				Response = HttpRequest.Send();
+				Response.get().MoveBodyTo(Paths.get(HttpRequest.GetOutputFileName().get()));
 			} catch (IOException e) {
-				System.out.println("ERROR: Could not send HTTP Request:");
-				e.printStackTrace();
+				System.out.println("ERROR: Could not write to " + HttpRequest.GetOutputFileName().get() + ".");
+				Response.get().DiscardBody();
 				return;
 			}
-			if (Response.isEmpty() || !Response.get().IsValid()) {
-				return;
+			// Only the body goes to the file: the head is shown as -v asks.
+			if (HttpRequest.IsVerbose()) {
+				System.out.println(Response.get().GetHead());
 			}
+		} else {
+			System.out.println(Response.get().toString(true).get());
 		}
-
-		System.out.println(Response.get().toString(true).get());
 	}
 
 	public static void PrintHelp(String HttpOperation) {
@@ -86,7 +112,8 @@ public class HttpC {
 					+ "    httpc command [arguments]\n" + "The commands are:\n"
 					+ "    get executes a HTTP GET request and prints the response.\n"
 					+ "    post executes a HTTP POST request and prints the response.\n"
-					+ "    help prints this screen. Use \"httpc help [command]\" for more information about a command.\n");
+					+ "    help prints this screen. Use \"httpc help [command]\" for more information about a command.\n"
+					+ "Transport options (any command):\n" + TransportOption.GetHelp());
 		}
 
 	}
@@ -0,0 +1,185 @@
+package Common;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// Bounded pool of direct buffers, for datagram I/O. Buffers hold
+// UDP_MESSAGE_MAX_SIZE bytes until the connection negotiates larger datagrams.
+// Direct buffers are handed to the socket without the copy through a
+// temporary direct buffer that heap buffers need. Buffers are created on
+// demand up to the capacity and reused afterwards, so steady state does not
+// allocate. So is their bookkeeping, so that an idle connection costs little.
+// The pool also holds at most ByteLimit bytes, whatever the datagram size: a
+// window of large datagrams would otherwise take far more direct memory than
+// the same window of small ones.
+public class BufferPool implements AutoCloseable {
+
+	private final static Logger LOGGER = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+
+	// Slots to start with, doubled as buffers are created.
+	private static final int INITIAL_SLOT_COUNT = 16;
+
+	private final int Capacity;
+	private final long ByteLimit;
+	private int BufferSize;
+	private ByteBuffer[] Buffers;
+	// Slot of each pooled buffer, filled when the buffer is created.
+	private final IdentityHashMap<ByteBuffer, Integer> Slots;
+	private boolean[] InUse;
+	// Where each buffer in use was acquired, only recorded at FINE.
+	private Throwable[] AcquireSites;
+	// Stack of free slots.
+	private int[] Free;
+	private int FreeCount;
+	// Stack of slots whose buffer was dropped for being too small, to create
+	// again when the bytes allow.
+	private int[] Vacant;
+	private int VacantCount;
+	private int CreatedCount;
+	// Bytes of the buffers created and not dropped.
+	private long PooledBytes;
+
+	// Metrics.
+	private int InUseCount;
+	private int PeakInUseCount;
+	private long AcquireCount;
+	private long ExhaustedCount;
+
+	public BufferPool(int Capacity, long ByteLimit) {
+		this.Capacity = Capacity;
+		this.ByteLimit = ByteLimit;
+		BufferSize = UdpMessage.UDP_MESSAGE_MAX_SIZE;
+		final int SlotCount = Math.min(Capacity, INITIAL_SLOT_COUNT);
+		Buffers = new ByteBuffer[SlotCount];
+		Slots = new IdentityHashMap<ByteBuffer, Integer>();
+		InUse = new boolean[SlotCount];
+		AcquireSites = new Throwable[SlotCount];
+		Free = new int[SlotCount];
+		FreeCount = 0;
+		Vacant = new int[SlotCount];
+		VacantCount = 0;
+		CreatedCount = 0;
+		PooledBytes = 0;
+		InUseCount = 0;
+		PeakInUseCount = 0;
+		AcquireCount = 0;
+		ExhaustedCount = 0;
+	}
+
+	// Buffers acquired from now on hold at least BufferSize bytes. Smaller free
+	// buffers are replaced as they are reused.
+	public synchronized void SetBufferSize(int BufferSize) {
+		this.BufferSize = BufferSize;
+	}
+
+	public synchronized int GetBufferSize() {
+		return BufferSize;
+	}
+
+	// A cleared buffer. When the pool is exhausted, in buffers or in bytes, falls
+	// back to an unpooled heap buffer, which Release ignores.
+	public synchronized ByteBuffer Acquire() {
+		AcquireCount++;
+		int Slot;
+		if (FreeCount > 0) {
+			Slot = Free[--FreeCount];
+			// Too small since the datagram size went up: drop it for a larger one.
+			if (Buffers[Slot].capacity() < BufferSize) {
+				Slots.remove(Buffers[Slot]);
+				PooledBytes -= Buffers[Slot].capacity();
+				Buffers[Slot] = null;
+				Vacant[VacantCount++] = Slot;
+				Slot = -1;
+			}
+		} else {
+			Slot = -1;
+		}
+		if (Slot < 0) {
+			if (PooledBytes + BufferSize > ByteLimit || (VacantCount == 0 && CreatedCount == Capacity)) {
+				ExhaustedCount++;
+				return ByteBuffer.allocate(BufferSize);
+			}
+			if (VacantCount > 0) {
+				Slot = Vacant[--VacantCount];
+			} else {
+				if (CreatedCount == Buffers.length) {
+					Grow();
+				}
+				Slot = CreatedCount++;
+			}
+			Buffers[Slot] = ByteBuffer.allocateDirect(BufferSize);
+			Slots.put(Buffers[Slot], Slot);
+			PooledBytes += BufferSize;
+		}
+		InUse[Slot] = true;
+		if (LOGGER.isLoggable(Level.FINE)) {
+			AcquireSites[Slot] = new Throwable("Acquired here");
+		}
+		InUseCount++;
+		PeakInUseCount = Math.max(PeakInUseCount, InUseCount);
+		return Buffers[Slot].clear();
+	}
+
+	private void Grow() {
+		final int SlotCount = Math.min(Capacity, Buffers.length * 2);
+		Buffers = Arrays.copyOf(Buffers, SlotCount);
+		InUse = Arrays.copyOf(InUse, SlotCount);
+		AcquireSites = Arrays.copyOf(AcquireSites, SlotCount);
+		Free = Arrays.copyOf(Free, SlotCount);
+		Vacant = Arrays.copyOf(Vacant, SlotCount);
+	}
+
+	public synchronized void Release(ByteBuffer Buffer) {
+		if (Buffer == null || !Buffer.isDirect()) {
+			return;
+		}
+		final Integer Slot = Slots.get(Buffer);
+		if (Slot == null) {
+			LOGGER.log(Level.WARNING, "Released a buffer that does not belong to this pool.");
+			return;
+		}
+		if (!InUse[Slot]) {
+			LOGGER.log(Level.WARNING, "Released a buffer twice.");
+			return;
+		}
+		InUse[Slot] = false;
+		AcquireSites[Slot] = null;
+		Free[FreeCount++] = Slot;
+		InUseCount--;
+	}
+
+	public synchronized int GetInUseCount() {
+		return InUseCount;
+	}
+
+	public synchronized int GetPeakInUseCount() {
+		return PeakInUseCount;
+	}
+
+	public synchronized long GetExhaustedCount() {
+		return ExhaustedCount;
+	}
+
+	// Every buffer should be back once its owner is done. Report the ones that
+	// are not.
+	@Override
+	public synchronized void close() {
+		if (InUseCount == 0) {
+			return;
+		}
+		LOGGER.log(Level.WARNING, "Buffer leak: " + InUseCount + " buffers were not released.");
+		for (int Slot = 0; Slot < CreatedCount; Slot++) {
+			if (InUse[Slot] && AcquireSites[Slot] != null) {
+				LOGGER.log(Level.FINE, "Leaked buffer " + Slot + ".", AcquireSites[Slot]);
+			}
+		}
+	}
+
+	public synchronized String toString() {
+		return "Buffers in use: " + InUseCount + " Peak: " + PeakInUseCount + "/" + Capacity + " Bytes: " + PooledBytes
+				+ "/" + ByteLimit + " Acquired: " + AcquireCount + " Exhausted: " + ExhaustedCount;
+	}
+}
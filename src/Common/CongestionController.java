@@ -0,0 +1,18 @@
+package Common;
+
+public interface CongestionController {
+
+	// Number of packets that may be in flight.
+	int GetWindow();
+
+	// Called once for every packet newly acknowledged.
+	void OnAck(long NowNanos, RttEstimator Estimator);
+
+	// Called when the oldest packet in flight hits its retransmission timeout.
+	void OnTimeout(long NowNanos);
+
+	// Called when a packet is resent before its timeout because later packets
+	// were ACKed, at most once per window of data.
+	void OnFastRetransmit(long NowNanos);
+
+}
@@ -0,0 +1,152 @@
+package Common;
+
+import java.nio.file.Path;
+import java.util.Optional;
+
+// Per-connection transport state shared by the handshake, the sender and the
+// receiver.
+public class ConnectionContext {
+
+	final private TransportOption Option;
+	final private RttEstimator Estimator;
+	final private CongestionController Controller;
+	final private TransportStatistics Statistics;
+	// Agreed on during the handshake. Legacy until then.
+	private HandshakeOptions Negotiated;
+	// Next SEQ to send and to receive. They carry over from one message to the
+	// next on a persistent connection.
+	private int SendSequenceNumber;
+	private int ReceiveSequenceNumber;
+	// When the congestion window last shrank for a fast retransmit. Losses of
+	// packets sent before belong to the same episode, whatever their message or
+	// stream: the window is that of the connection.
+	private long RecoveryTime;
+	// FIN received while waiting for a message.
+	private Optional<UdpMessage> PeerFin;
+	// Last packet of the handshake on the client. A SYNACK again means it was lost.
+	private Optional<UdpMessage> HandshakeAck;
+	// Where to write the body of incoming messages as it arrives. In memory if
+	// empty.
+	private Optional<Path> BodyDirectory;
+
+	public ConnectionContext(TransportOption Option) {
+		this.Option = Option;
+		this.Estimator = new RttEstimator();
+		this.Controller = Option.CongestionAlgorithm.NewController(Option.WindowSize);
+		this.Statistics = new TransportStatistics();
+		this.Negotiated = new HandshakeOptions();
+		this.RecoveryTime = System.nanoTime();
+		this.PeerFin = Optional.empty();
+		this.HandshakeAck = Optional.empty();
+		this.BodyDirectory = Optional.empty();
+	}
+
+	// What this end offers in its SYN or SYNACK.
+	public HandshakeOptions GetOffered() {
+		HandshakeOptions Offered = new HandshakeOptions();
+		Offered.HeaderVersion = Option.HeaderVersion;
+		Offered.DatagramSize = Option.DatagramSize;
+		Offered.WindowSize = Option.WindowSize;
+		Offered.bKeepAlive = Option.IdleTimeout > 0;
+		Offered.bEarlyData = Option.bEarlyData;
+		return Offered;
+	}
+
+	public HandshakeOptions GetNegotiated() {
+		return Negotiated;
+	}
+
+	public void SetNegotiated(HandshakeOptions Negotiated) {
+		this.Negotiated = Negotiated;
+	}
+
+	public int GetHeaderVersion() {
+		return Negotiated.HeaderVersion;
+	}
+
+	public SequenceSpace GetSequenceSpace() {
+		return SequenceSpace.ForVersion(Negotiated.HeaderVersion);
+	}
+
+	public int GetDatagramSize() {
+		return Negotiated.DatagramSize;
+	}
+
+	// Most packets in flight, either way.
+	public int GetWindowSize() {
+		return Negotiated.WindowSize;
+	}
+
+	// Several messages at once, each on its own stream.
+	public Boolean IsMultiplexed() {
+		return Negotiated.HeaderVersion >= UdpMessage.VERSION_4;
+	}
+
+	public Boolean IsKeepAlive() {
+		return Negotiated.bKeepAlive;
+	}
+
+	public int GetSendSequenceNumber() {
+		return SendSequenceNumber;
+	}
+
+	public void SetSendSequenceNumber(int SendSequenceNumber) {
+		this.SendSequenceNumber = SendSequenceNumber;
+	}
+
+	public int GetReceiveSequenceNumber() {
+		return ReceiveSequenceNumber;
+	}
+
+	public void SetReceiveSequenceNumber(int ReceiveSequenceNumber) {
+		this.ReceiveSequenceNumber = ReceiveSequenceNumber;
+	}
+
+	public long GetRecoveryTime() {
+		return RecoveryTime;
+	}
+
+	public void SetRecoveryTime(long RecoveryTime) {
+		this.RecoveryTime = RecoveryTime;
+	}
+
+	public Optional<UdpMessage> GetPeerFin() {
+		return PeerFin;
+	}
+
+	public void SetPeerFin(UdpMessage Fin) {
+		this.PeerFin = Optional.of(Fin);
+	}
+
+	public Optional<UdpMessage> GetHandshakeAck() {
+		return HandshakeAck;
+	}
+
+	public void SetHandshakeAck(UdpMessage Ack) {
+		this.HandshakeAck = Optional.of(Ack);
+	}
+
+	public Optional<Path> GetBodyDirectory() {
+		return BodyDirectory;
+	}
+
+	public void SetBodyDirectory(Optional<Path> BodyDirectory) {
+		this.BodyDirectory = BodyDirectory;
+	}
+
+	public TransportOption GetOption() {
+		return Option;
+	}
+
+	public RttEstimator GetEstimator() {
+		return Estimator;
+	}
+
+	public CongestionController GetController() {
+		return Controller;
+	}
+
+	public TransportStatistics GetStatistics() {
+		return Statistics;
+	}
+}
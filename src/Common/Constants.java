@@ -8,8 +8,24 @@ public final class Constants {
 	public static SocketAddress ROUTER_ADDRESS = new InetSocketAddress("127.0.0.1", 3000);
 	public static InetSocketAddress SERVER_ADDRESS = new InetSocketAddress("127.0.0.1", 8080);
 	public static int DEFAULT_TIMEOUT = 1000;
+	public static int MIN_TIMEOUT = 10;
+	public static int MAX_TIMEOUT = 60000;
 	public static int FIN_TIMEOUT = 5000;
 	public static int RETRANSMISSION_ATTEMPTS = 20;
-	public static int WINDOW_SIZE = 8;
+	public static int INITIAL_WINDOW_SIZE = 8;
+	// Largest window -window accepts and a handshake agrees to, whatever the
+	// header version. It is half of the 16-bit sequence space of versions 1 and
+	// 2, for SEQ distances to tell a new packet from an old one, and the window
+	// is agreed on in the same handshake as the version, so it may not count on
+	// the 31-bit space. It fits the 2-byte window option. A larger window would
+	// not pay either: each end allocates its ring, with a timer per slot, for the
+	// whole window, and at 1024 bytes the buffer pool of a reactor (8 MB) already
+	// runs out at 8192 packets in flight.
+	public static int MAX_WINDOW_SIZE = 32768;
+	// Window of a peer that does not negotiate one: the fixed window of the
+	// peers from before the handshake options.
+	public static int LEGACY_WINDOW_SIZE = 8;
+	// Packets a pacer may send back to back.
+	public static int PACER_BURST = 4;
 
 }
@@ -0,0 +1,102 @@
+package Common;
+
+// CUBIC window growth (RFC 8312). After a loss, the window grows as a cubic
+// function of the time since the loss, so that it plateaus around the window
+// where the loss happened and probes beyond it afterwards.
+public class CubicCongestionController implements CongestionController {
+
+	private static final double C = 0.4;
+	private static final double BETA = 0.7;
+
+	private final int WindowLimit;
+	private double Window;
+	private double SlowStartThreshold;
+	// Window just before the last reduction.
+	private double MaxWindow;
+	private double LastMaxWindow;
+	// Start of the current congestion avoidance epoch, or -1.
+	private long EpochStart;
+	private double OriginPoint;
+	private double K;
+	// Reno-equivalent window, to stay TCP-friendly at short RTTs.
+	private double EstimatedWindow;
+
+	public CubicCongestionController(int WindowLimit) {
+		this.WindowLimit = WindowLimit;
+		Window = Constants.INITIAL_WINDOW_SIZE;
+		SlowStartThreshold = WindowLimit;
+		MaxWindow = 0;
+		LastMaxWindow = 0;
+		EpochStart = -1;
+	}
+
+	@Override
+	public int GetWindow() {
+		return (int) Math.min(Math.max(Window, 1), WindowLimit);
+	}
+
+	@Override
+	public void OnAck(long NowNanos, RttEstimator Estimator) {
+		if (Window < SlowStartThreshold) {
+			Window += 1;
+		} else {
+			if (EpochStart < 0) {
+				EpochStart = NowNanos;
+				if (Window < MaxWindow) {
+					K = Math.cbrt((MaxWindow - Window) / C);
+					OriginPoint = MaxWindow;
+				} else {
+					K = 0;
+					OriginPoint = Window;
+				}
+				EstimatedWindow = Window;
+			}
+
+			final long Rtt = Math.max(Estimator.GetSmoothedRttNanos(), 0);
+			final double Time = (NowNanos - EpochStart + Rtt) / 1e9;
+			final double Target = OriginPoint + C * Math.pow(Time - K, 3);
+			if (Target > Window) {
+				Window += (Target - Window) / Window;
+			} else {
+				Window += 0.01 / Window;
+			}
+
+			EstimatedWindow += 3 * (1 - BETA) / (1 + BETA) / Window;
+			if (EstimatedWindow > Window) {
+				Window = EstimatedWindow;
+			}
+		}
+		Window = Math.min(Window, WindowLimit);
+	}
+
+	@Override
+	public void OnTimeout(long NowNanos) {
+		Reduce();
+		Window = 1;
+	}
+
+	@Override
+	public void OnFastRetransmit(long NowNanos) {
+		// ACKs still flow, so shrink the window but skip slow start.
+		Reduce();
+		Window = SlowStartThreshold;
+	}
+
+	private void Reduce() {
+		EpochStart = -1;
+		// Fast convergence: release bandwidth if the plateau keeps dropping.
+		if (Window < LastMaxWindow) {
+			LastMaxWindow = Window;
+			MaxWindow = Window * (1 + BETA) / 2;
+		} else {
+			LastMaxWindow = Window;
+			MaxWindow = Window;
+		}
+		SlowStartThreshold = Math.max(Window * BETA, 2);
+	}
+
+	public String toString() {
+		return "CUBIC cwnd: " + String.format("%.1f", Window) + " ssthresh: " + String.format("%.1f", SlowStartThreshold)
+				+ " Wmax: " + String.format("%.1f", MaxWindow);
+	}
+}
@@ -3,7 +3,6 @@ package Common;
 import java.io.IOException;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
-import java.nio.channels.DatagramChannel;
 import java.util.Optional;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -12,13 +11,29 @@ public class DatagramChannelUtils {
 
 	private final static Logger LOGGER = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
 
-	public static Boolean Send(DatagramChannel Channel, SocketAddress TargetSocket, UdpMessage Message) {
-		final byte[] RawMessage = Message.GenerateRaw();
-		ByteBuffer Buffer = ByteBuffer.allocate(RawMessage.length);
-		Buffer.put(RawMessage);
-		Buffer.clear();
+	public static Boolean Send(DatagramReactor Reactor, SocketAddress TargetSocket, UdpMessage Message) {
+		final ByteBuffer Buffer = Reactor.GetBufferPool().Acquire();
+		try {
+			Message.WriteTo(Buffer);
+			Buffer.flip();
+			return SendRaw(Reactor, TargetSocket, Buffer);
+		} finally {
+			Reactor.GetBufferPool().Release(Buffer);
+		}
+	}
+
+	// Send the encoded datagram between the position and the limit of Datagram.
+	public static Boolean SendRaw(DatagramReactor Reactor, SocketAddress TargetSocket, ByteBuffer Datagram) {
 		try {
-			Channel.send(Buffer, TargetSocket);
+			final long Deadline = System.nanoTime() + Constants.DEFAULT_TIMEOUT * 1_000_000L;
+			// A non-blocking send returns 0 when the socket buffer is full. Wait for
+			// OP_WRITE instead of silently dropping the datagram.
+			while (Reactor.Send(Datagram, TargetSocket) == 0) {
+				if (!Reactor.AwaitWritable(Deadline)) {
+					LOGGER.log(Level.WARNING, "Send timeout: socket buffer stayed full.");
+					return false;
+				}
+			}
 		} catch (IOException e) {
 			return false;
 		}
@@ -26,68 +41,102 @@ public class DatagramChannelUtils {
 		return true;
 	}
 
-	public static Optional<UdpMessage> ReceiveOnce(DatagramChannel Channel) {
-		ByteBuffer Buffer = ByteBuffer.allocate(UdpMessage.UDP_MESSAGE_MAX_SIZE);
+	// Receive a datagram into Buffer, left flipped for reading, without decoding
+	// it. Returns false if none is pending.
+	public static Boolean ReceiveRawOnce(DatagramReactor Reactor, ByteBuffer Buffer) {
+		Buffer.clear();
 		try {
-			SocketAddress SocketAddress = Channel.receive(Buffer);
-			if (SocketAddress != null) {
-				Buffer.clear();
-				Optional<UdpMessage> Message = UdpMessage.ConstructFromBytes(Buffer.array());
-				if (Message.isPresent()) {
-					return Message;
-				} else {
-					LOGGER.log(Level.WARNING, "Malformed message: " + Buffer.toString() + ".");
-				}
+			if (!Reactor.Receive(Buffer)) {
+				return false;
 			}
 		} catch (IOException e) {
-			return Optional.empty();
+			return false;
+		}
+		Buffer.flip();
+		if (!UdpMessage.IsWellFormed(Buffer)) {
+			LOGGER.log(Level.WARNING, "Malformed message: " + Buffer.toString() + ".");
+			return false;
 		}
-		return Optional.empty();
+		return true;
 	}
 
-	public static Optional<UdpMessage> Receive(DatagramChannel Channel, int Timeout) {
-		final long StartTime = System.currentTimeMillis();
-		while (System.currentTimeMillis() - StartTime < Timeout) {
-			ByteBuffer Buffer = ByteBuffer.allocate(UdpMessage.UDP_MESSAGE_MAX_SIZE);
-
-			try {
-				SocketAddress SocketAddress = Channel.receive(Buffer);
-				if (SocketAddress != null) {
-					Buffer.clear();
-					Optional<UdpMessage> Message = UdpMessage.ConstructFromBytes(Buffer.array());
-					if (Message.isPresent()) {
-						return Message;
-					} else {
-						LOGGER.log(Level.WARNING, "Malformed message: " + Buffer.toString() + ".");
-					}
-				}
-			} catch (IOException e) {
-				return Optional.empty();
+	// Same as ReceiveRawOnce, parking at most until the reactor is woken up.
+	public static Boolean ReceiveRawUntilWakeup(DatagramReactor Reactor, ByteBuffer Buffer) {
+		if (ReceiveRawOnce(Reactor, Buffer)) {
+			return true;
+		}
+		try {
+			if (!Reactor.AwaitReadable(DatagramReactor.NO_DEADLINE)) {
+				return false;
 			}
+		} catch (IOException e) {
+			return false;
 		}
-		return Optional.empty();
+		return ReceiveRawOnce(Reactor, Buffer);
+	}
 
+	public static Optional<UdpMessage> ReceiveOnce(DatagramReactor Reactor) {
+		final ByteBuffer Buffer = Reactor.GetBufferPool().Acquire();
+		try {
+			return ReceiveRawOnce(Reactor, Buffer) ? Decode(Buffer) : Optional.empty();
+		} finally {
+			Reactor.GetBufferPool().Release(Buffer);
+		}
 	}
 
-	public static Optional<UdpMessage> ReceiveBlocking(DatagramChannel Channel) {
-		while (true) {
-			ByteBuffer Buffer = ByteBuffer.allocate(UdpMessage.UDP_MESSAGE_MAX_SIZE);
+	public static Optional<UdpMessage> Receive(DatagramReactor Reactor, int Timeout) {
+		return ReceiveUntil(Reactor, System.nanoTime() + Timeout * 1_000_000L);
+	}
 
-			try {
-				SocketAddress SocketAddress = Channel.receive(Buffer);
-				if (SocketAddress != null) {
-					Buffer.clear();
-					Optional<UdpMessage> Message = UdpMessage.ConstructFromBytes(Buffer.array());
+	public static Optional<UdpMessage> ReceiveUntil(DatagramReactor Reactor, long DeadlineNanos) {
+		if (DeadlineNanos - System.nanoTime() <= 0) {
+			return ReceiveOnce(Reactor);
+		}
+		// The deadline is a timer on the shared wheel that wakes the reactor up.
+		final TimerWheel.Timer DeadlineTimer = Reactor.GetDeadlineTimer();
+		TimerWheel.GetShared().Schedule(DeadlineTimer, DeadlineNanos);
+		final ByteBuffer Buffer = Reactor.GetBufferPool().Acquire();
+		try {
+			while (true) {
+				if (ReceiveRawOnce(Reactor, Buffer)) {
+					final Optional<UdpMessage> Message = Decode(Buffer);
 					if (Message.isPresent()) {
 						return Message;
-					} else {
-						LOGGER.log(Level.WARNING, "Malformed message: " + Buffer.toString() + ".");
-						return Optional.empty();
 					}
+				} else if (DeadlineTimer.HasExpired()) {
+					return Optional.empty();
+				} else {
+					Reactor.AwaitReadable(DatagramReactor.NO_DEADLINE);
 				}
-			} catch (IOException e) {
-				return Optional.empty();
 			}
+		} catch (IOException e) {
+			return Optional.empty();
+		} finally {
+			TimerWheel.GetShared().Cancel(DeadlineTimer);
+			Reactor.GetBufferPool().Release(Buffer);
+		}
+	}
+
+	public static Optional<UdpMessage> ReceiveBlocking(DatagramReactor Reactor) {
+		final ByteBuffer Buffer = Reactor.GetBufferPool().Acquire();
+		try {
+			// Park instead of spinning on the non-blocking channel.
+			while (!ReceiveRawOnce(Reactor, Buffer)) {
+				Reactor.AwaitReadable(DatagramReactor.NO_DEADLINE);
+			}
+			return Decode(Buffer);
+		} catch (IOException e) {
+			return Optional.empty();
+		} finally {
+			Reactor.GetBufferPool().Release(Buffer);
+		}
+	}
+
+	private static Optional<UdpMessage> Decode(ByteBuffer Buffer) {
+		final Optional<UdpMessage> Message = UdpMessage.ConstructFromBuffer(Buffer);
+		if (Message.isEmpty()) {
+			LOGGER.log(Level.WARNING, "Malformed message: " + Buffer.toString() + ".");
 		}
+		return Message;
 	}
 }
@@ -0,0 +1,143 @@
+package Common;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+public class DatagramReactor implements AutoCloseable {
+
+	// Deadline value meaning "wait until something happens".
+	public static final long NO_DEADLINE = Long.MAX_VALUE;
+	// Buffers beyond a full send window, for receiving and control packets.
+	private static final int EXTRA_BUFFER_COUNT = 16;
+	// Direct memory of the buffers of a connection: a full default window of
+	// legacy datagrams, but only 128 of the largest ones. Beyond it, the pool
+	// hands out heap buffers.
+	private static final long BUFFER_POOL_BYTE_LIMIT = 8L << 20;
+	// Datagrams the socket buffers should hold, as far as the kernel allows.
+	private static final int SOCKET_BUFFER_DATAGRAMS = 64;
+
+	private final DatagramChannel Channel;
+	// Null if the channel is read by someone else, see DemultiplexedReactor.
+	private final Selector Selector;
+	private final SelectionKey Key;
+	// Wakes the reactor up when a receive deadline expires.
+	private final TimerWheel.Timer DeadlineTimer;
+	// Datagram buffers of everything sent or received through this reactor.
+	private final BufferPool BufferPool;
+
+	// WindowSize is the most packets in flight that the connection offers.
+	public DatagramReactor(DatagramChannel Channel, int WindowSize) throws IOException {
+		this.Channel = Channel;
+		// A Selector requires a non-blocking channel.
+		this.Channel.configureBlocking(false);
+		this.Selector = java.nio.channels.Selector.open();
+		this.Key = Channel.register(Selector, SelectionKey.OP_READ);
+		this.DeadlineTimer = new TimerWheel.Timer(this::Wakeup);
+		this.BufferPool = new BufferPool(WindowSize + EXTRA_BUFFER_COUNT, BUFFER_POOL_BYTE_LIMIT);
+	}
+
+	// For a subclass that gets its datagrams other than by reading Channel, which
+	// is only used to send and stays as it is.
+	protected DatagramReactor(DatagramChannel Channel, int WindowSize, int ExtraBufferCount) {
+		this.Channel = Channel;
+		this.Selector = null;
+		this.Key = null;
+		this.DeadlineTimer = new TimerWheel.Timer(this::Wakeup);
+		this.BufferPool = new BufferPool(WindowSize + EXTRA_BUFFER_COUNT + ExtraBufferCount,
+				BUFFER_POOL_BYTE_LIMIT);
+	}
+
+	public DatagramChannel GetChannel() {
+		return Channel;
+	}
+
+	public BufferPool GetBufferPool() {
+		return BufferPool;
+	}
+
+	// Size the buffers for the datagrams of the connection, once negotiated.
+	public void SetDatagramSize(int DatagramSize) throws IOException {
+		BufferPool.SetBufferSize(DatagramSize);
+		final int SocketBufferSize = DatagramSize * SOCKET_BUFFER_DATAGRAMS;
+		if (Channel.getOption(StandardSocketOptions.SO_RCVBUF) < SocketBufferSize) {
+			Channel.setOption(StandardSocketOptions.SO_RCVBUF, SocketBufferSize);
+		}
+		if (Channel.getOption(StandardSocketOptions.SO_SNDBUF) < SocketBufferSize) {
+			Channel.setOption(StandardSocketOptions.SO_SNDBUF, SocketBufferSize);
+		}
+	}
+
+	public TimerWheel.Timer GetDeadlineTimer() {
+		return DeadlineTimer;
+	}
+
+	// Receive a pending datagram into Buffer. Returns false if there is none.
+	public Boolean Receive(ByteBuffer Buffer) throws IOException {
+		return Channel.receive(Buffer) != null;
+	}
+
+	// Send the datagram between the position and the limit of Buffer. Returns 0 if
+	// the socket buffer is full.
+	public int Send(ByteBuffer Buffer, SocketAddress Target) throws IOException {
+		return Channel.send(Buffer, Target);
+	}
+
+	// Make a parked or the next Await return. Safe to call from any thread.
+	public void Wakeup() {
+		Selector.wakeup();
+	}
+
+	// Park until a datagram can be read, the deadline (System.nanoTime()) is
+	// reached or Wakeup is called. Returns false on timeout or wakeup.
+	public Boolean AwaitReadable(long DeadlineNanos) throws IOException {
+		return Await(SelectionKey.OP_READ, DeadlineNanos);
+	}
+
+	// Park until the socket buffer accepts a datagram or the deadline is reached.
+	// Returns false on timeout.
+	public Boolean AwaitWritable(long DeadlineNanos) throws IOException {
+		try {
+			return Await(SelectionKey.OP_WRITE, DeadlineNanos);
+		} finally {
+			Key.interestOps(SelectionKey.OP_READ);
+		}
+	}
+
+	private Boolean Await(int Operations, long DeadlineNanos) throws IOException {
+		Key.interestOps(Operations);
+		for (;;) {
+			final long RemainingNanos = DeadlineNanos - System.nanoTime();
+			int ReadyCount;
+			if (DeadlineNanos == NO_DEADLINE) {
+				ReadyCount = Selector.select();
+			} else if (RemainingNanos <= 0) {
+				ReadyCount = Selector.selectNow();
+			} else {
+				// Round up so that we never wake just before the deadline.
+				ReadyCount = Selector.select((RemainingNanos + 999_999) / 1_000_000);
+			}
+			Selector.selectedKeys().clear();
+
+			if (ReadyCount > 0 && (Key.readyOps() & Operations) != 0) {
+				return true;
+			}
+			if (DeadlineNanos == NO_DEADLINE || System.nanoTime() - DeadlineNanos >= 0) {
+				return false;
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		TimerWheel.GetShared().Cancel(DeadlineTimer);
+		if (Selector != null) {
+			Selector.close();
+		}
+		BufferPool.close();
+	}
+}
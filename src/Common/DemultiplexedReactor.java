@@ -0,0 +1,140 @@
+package Common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Reactor of one of many connections served from a single channel. Whoever
+// reads the channel hands each datagram to the reactor of its connection with
+// Deliver, and the connection receives it from there. Sending goes straight to
+// the channel, which must be in blocking mode: the socket buffer applies back
+// pressure instead of OP_WRITE.
+public class DemultiplexedReactor extends DatagramReactor {
+
+	// Datagrams waiting for the connection, like a socket buffer: enough for an
+	// ACK of every packet in flight. More are dropped, as the socket would.
+	private final int InboundCapacity;
+	private final ArrayDeque<ByteBuffer> Inbound;
+	private final ReentrantLock Lock;
+	private final Condition Changed;
+	// Wakeup was called since the last Await returned, like Selector.wakeup.
+	private Boolean bWokenUp;
+	private Boolean bClosed;
+
+	public DemultiplexedReactor(DatagramChannel SharedChannel, int WindowSize) {
+		super(SharedChannel, WindowSize, WindowSize);
+		this.InboundCapacity = WindowSize;
+		this.Inbound = new ArrayDeque<ByteBuffer>();
+		this.Lock = new ReentrantLock();
+		this.Changed = Lock.newCondition();
+		this.bWokenUp = false;
+		this.bClosed = false;
+	}
+
+	// Queue a copy of the datagram between the position and the limit of Datagram.
+	// Returns false if it was dropped. Safe to call from any thread.
+	public Boolean Deliver(ByteBuffer Datagram) {
+		Lock.lock();
+		try {
+			if (bClosed || Inbound.size() >= InboundCapacity) {
+				return false;
+			}
+			// Only a peer that ignores the negotiated size sends larger datagrams.
+			final ByteBuffer Copy = Datagram.remaining() <= GetBufferPool().GetBufferSize()
+					? GetBufferPool().Acquire()
+					: ByteBuffer.allocate(Datagram.remaining());
+			Copy.put(Datagram).flip();
+			Inbound.add(Copy);
+			Changed.signal();
+			return true;
+		} finally {
+			Lock.unlock();
+		}
+	}
+
+	@Override
+	public Boolean Receive(ByteBuffer Buffer) {
+		ByteBuffer Datagram;
+		Lock.lock();
+		try {
+			Datagram = Inbound.poll();
+		} finally {
+			Lock.unlock();
+		}
+		if (Datagram == null) {
+			return false;
+		}
+		// What does not fit is lost, as with DatagramChannel.receive.
+		Datagram.limit(Math.min(Datagram.limit(), Buffer.remaining()));
+		Buffer.put(Datagram);
+		GetBufferPool().Release(Datagram);
+		return true;
+	}
+
+	@Override
+	public void Wakeup() {
+		Lock.lock();
+		try {
+			bWokenUp = true;
+			Changed.signal();
+		} finally {
+			Lock.unlock();
+		}
+	}
+
+	@Override
+	public Boolean AwaitReadable(long DeadlineNanos) throws IOException {
+		Lock.lock();
+		try {
+			for (;;) {
+				if (!Inbound.isEmpty()) {
+					return true;
+				}
+				if (bWokenUp || bClosed) {
+					bWokenUp = false;
+					return false;
+				}
+				if (DeadlineNanos == NO_DEADLINE) {
+					Changed.await();
+				} else {
+					final long RemainingNanos = DeadlineNanos - System.nanoTime();
+					if (RemainingNanos <= 0) {
+						return false;
+					}
+					Changed.await(RemainingNanos, TimeUnit.NANOSECONDS);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} finally {
+			Lock.unlock();
+		}
+	}
+
+	// A blocking channel only returns from send once the datagram is out.
+	@Override
+	public Boolean AwaitWritable(long DeadlineNanos) {
+		return true;
+	}
+
+	// Drop what was not received. The channel belongs to whoever reads it.
+	@Override
+	public void close() throws IOException {
+		Lock.lock();
+		try {
+			bClosed = true;
+			for (ByteBuffer Datagram : Inbound) {
+				GetBufferPool().Release(Datagram);
+			}
+			Inbound.clear();
+		} finally {
+			Lock.unlock();
+		}
+		super.close();
+	}
+}
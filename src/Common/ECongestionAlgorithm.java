@@ -0,0 +1,38 @@
+package Common;
+
+import java.util.Optional;
+
+public enum ECongestionAlgorithm {
+	Reno("reno"), Cubic("cubic");
+
+	private String Name;
+
+	private ECongestionAlgorithm(String Name) {
+		this.Name = Name;
+	}
+
+	public static Optional<ECongestionAlgorithm> FromName(String Name) {
+		for (ECongestionAlgorithm Variant : ECongestionAlgorithm.values()) {
+			if (Variant.Name.equalsIgnoreCase(Name)) {
+				return Optional.of(Variant);
+			}
+		}
+
+		return Optional.empty();
+	}
+
+	// The window never grows past WindowLimit.
+	public CongestionController NewController(int WindowLimit) {
+		switch (this) {
+		case Reno:
+			return new RenoCongestionController(WindowLimit);
+		case Cubic:
+			return new CubicCongestionController(WindowLimit);
+		}
+		return null;
+	}
+
+	public String toString() {
+		return Name;
+	}
+}
@@ -3,6 +3,9 @@ package Common;
 public enum EUdpPacketType {
 	Data(1), Ack(2), Syn(3), SynAck(4), Fin(5);
 
+	// values() clones its array on every call.
+	private static final EUdpPacketType[] VALUES = values();
+
 	private int Value;
 
 	private EUdpPacketType(int Value) {
@@ -10,7 +13,7 @@ public enum EUdpPacketType {
 	}
 
 	static EUdpPacketType FromValue(int Value) {
-		for (EUdpPacketType Variant : EUdpPacketType.values()) {
+		for (EUdpPacketType Variant : VALUES) {
 			if (Variant.Value == Value) {
 				return Variant;
 			}
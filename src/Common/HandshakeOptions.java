@@ -0,0 +1,147 @@
+package Common;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+// Options negotiated in the payload of SYN and SYNACK. Each option is a kind
+// byte, a length byte and a value, like TCP options, and the list ends with
+// END. A legacy peer sends no payload, which reads as the defaults, and ignores
+// the payload it receives.
+public class HandshakeOptions {
+
+	private static final int KIND_HEADER_VERSION = 1;
+	private static final int KIND_DATAGRAM_SIZE = 2;
+	private static final int KIND_KEEP_ALIVE = 3;
+	private static final int KIND_EARLY_DATA = 4;
+	private static final int KIND_COOKIE = 5;
+	// 2 bytes, as the window is at most Constants.MAX_WINDOW_SIZE.
+	private static final int KIND_WINDOW_SIZE = 6;
+	// Non-zero, so that a version 1 header does not strip it.
+	private static final int KIND_END = 0xFF;
+
+	public int HeaderVersion;
+	// Largest datagram, header included, that the end and its path accept.
+	public int DatagramSize;
+	// Most packets in flight that the end takes, and keeps state for.
+	public int WindowSize;
+	// Whether the connection carries several requests, one after the other.
+	public Boolean bKeepAlive;
+	// In a SYN, a request follows the options. In a SYNACK, the request was
+	// answered and the start of the response follows the options.
+	public Boolean bEarlyData;
+	// In a SYNACK, the server kept no state: its SEQ is a cookie, and the ACK must
+	// echo the options of the SYN for the server to set up the connection.
+	public Boolean bCookie;
+	// With bCookie, a MAC that the ACK echoes along with the SEQ, as the 16 bits
+	// of a legacy SEQ are too few to stop guesses.
+	public int CookieMac;
+
+	public HandshakeOptions() {
+		HeaderVersion = UdpMessage.VERSION_1;
+		DatagramSize = UdpMessage.UDP_MESSAGE_MAX_SIZE;
+		WindowSize = Constants.LEGACY_WINDOW_SIZE;
+		bKeepAlive = false;
+		bEarlyData = false;
+		bCookie = false;
+		CookieMac = 0;
+	}
+
+	public static HandshakeOptions FromBytes(byte[] Bytes) {
+		HandshakeOptions Options = new HandshakeOptions();
+		int i = 0;
+		while (i + 1 < Bytes.length) {
+			final int Kind = Bytes[i] & 0xFF;
+			final int Length = Bytes[i + 1] & 0xFF;
+			if (Kind == KIND_END || i + 2 + Length > Bytes.length) {
+				break;
+			}
+			// Unknown options are skipped.
+			if (Kind == KIND_HEADER_VERSION && Length == 1) {
+				Options.HeaderVersion = Bytes[i + 2] & 0xFF;
+			} else if (Kind == KIND_DATAGRAM_SIZE && Length == 2) {
+				Options.DatagramSize = ((Bytes[i + 2] & 0xFF) << 8) | (Bytes[i + 3] & 0xFF);
+			} else if (Kind == KIND_WINDOW_SIZE && Length == 2) {
+				Options.WindowSize = ((Bytes[i + 2] & 0xFF) << 8) | (Bytes[i + 3] & 0xFF);
+			} else if (Kind == KIND_KEEP_ALIVE && Length == 0) {
+				Options.bKeepAlive = true;
+			} else if (Kind == KIND_EARLY_DATA && Length == 0) {
+				Options.bEarlyData = true;
+			} else if (Kind == KIND_COOKIE && Length == 0) {
+				Options.bCookie = true;
+			} else if (Kind == KIND_COOKIE && Length == 4) {
+				Options.bCookie = true;
+				Options.CookieMac = ((Bytes[i + 2] & 0xFF) << 24) | ((Bytes[i + 3] & 0xFF) << 16)
+						| ((Bytes[i + 4] & 0xFF) << 8) | (Bytes[i + 5] & 0xFF);
+			}
+			i += 2 + Length;
+		}
+		return Options;
+	}
+
+	public byte[] ToBytes() {
+		ByteArrayOutputStream Bytes = new ByteArrayOutputStream();
+		Bytes.write(KIND_HEADER_VERSION);
+		Bytes.write(1);
+		Bytes.write(HeaderVersion);
+		// Only sent when above the legacy size, which is what its absence means.
+		if (DatagramSize != UdpMessage.UDP_MESSAGE_MAX_SIZE) {
+			Bytes.write(KIND_DATAGRAM_SIZE);
+			Bytes.write(2);
+			Bytes.write(DatagramSize >>> 8);
+			Bytes.write(DatagramSize);
+		}
+		// Same for the legacy window, which is smaller than any other.
+		if (WindowSize != Constants.LEGACY_WINDOW_SIZE) {
+			Bytes.write(KIND_WINDOW_SIZE);
+			Bytes.write(2);
+			Bytes.write(WindowSize >>> 8);
+			Bytes.write(WindowSize);
+		}
+		if (bKeepAlive) {
+			Bytes.write(KIND_KEEP_ALIVE);
+			Bytes.write(0);
+		}
+		if (bEarlyData) {
+			Bytes.write(KIND_EARLY_DATA);
+			Bytes.write(0);
+		}
+		if (bCookie) {
+			Bytes.write(KIND_COOKIE);
+			Bytes.write(4);
+			Bytes.write(CookieMac >>> 24);
+			Bytes.write(CookieMac >>> 16);
+			Bytes.write(CookieMac >>> 8);
+			Bytes.write(CookieMac);
+		}
+		Bytes.write(KIND_END);
+		return Bytes.toByteArray();
+	}
+
+	// What both ends support, given what the peer offered.
+	public HandshakeOptions Negotiate(HandshakeOptions Offered) {
+		HandshakeOptions Options = new HandshakeOptions();
+		Options.HeaderVersion = Math.min(HeaderVersion, Offered.HeaderVersion);
+		// Never below the legacy size, which both ends accept anyway.
+		Options.DatagramSize = Math.max(Math.min(DatagramSize, Offered.DatagramSize), UdpMessage.UDP_MESSAGE_MAX_SIZE);
+		// Within what both ends keep state for, and at least a packet.
+		Options.WindowSize = Math.max(Math.min(Math.min(WindowSize, Offered.WindowSize), Constants.MAX_WINDOW_SIZE), 1);
+		Options.bKeepAlive = bKeepAlive && Offered.bKeepAlive;
+		Options.bEarlyData = bEarlyData && Offered.bEarlyData;
+		return Options;
+	}
+
+	// Bytes that follow the options, empty if none.
+	public static byte[] GetEarlyData(byte[] Bytes) {
+		int i = 0;
+		while (i + 1 < Bytes.length && (Bytes[i] & 0xFF) != KIND_END) {
+			i += 2 + (Bytes[i + 1] & 0xFF);
+		}
+		return i < Bytes.length && (Bytes[i] & 0xFF) == KIND_END ? Arrays.copyOfRange(Bytes, i + 1, Bytes.length)
+				: new byte[0];
+	}
+
+	public String toString() {
+		return "Header version: " + HeaderVersion + " Datagram size: " + DatagramSize + " Window size: " + WindowSize
+				+ " Keep-alive: " + bKeepAlive + " Early data: " + bEarlyData + " Cookie: " + bCookie;
+	}
+}
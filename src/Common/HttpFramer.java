@@ -0,0 +1,225 @@
+package Common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// Reassembles an HTTP message from in-order payloads. The header is parsed once,
+// when its blank line arrives, to learn Content-Length. From then on, telling
+// whether the message is complete is O(1). Given a directory, the body is
+// written to a new file there as it arrives instead of kept in memory, so that
+// only the header is, whatever the size of the body.
+public class HttpFramer {
+
+	private final static Logger LOGGER = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+
+	private static final int INITIAL_CAPACITY = 4096;
+	private static final byte[] HEADER_END = { '\r', '\n', '\r', '\n' };
+
+	private byte[] Bytes;
+	private int Length;
+	// Where to resume looking for the end of the header.
+	private int ScanIndex;
+	// Size of the header including its blank line, or -1 until it is received.
+	private int HeaderLength;
+	private long ContentLength;
+	// Where the body goes instead, if anywhere. The file exists from the end of
+	// the header until it is handed over to the message or discarded.
+	private final Optional<Path> BodyDirectory;
+	private Path BodyPath;
+	private FileChannel BodyChannel;
+	private long BodyWrittenLength;
+	private Boolean bFailed;
+
+	public HttpFramer() {
+		this(Optional.empty());
+	}
+
+	public HttpFramer(Optional<Path> BodyDirectory) {
+		Bytes = new byte[INITIAL_CAPACITY];
+		Length = 0;
+		ScanIndex = 0;
+		HeaderLength = -1;
+		ContentLength = 0;
+		this.BodyDirectory = BodyDirectory;
+		BodyPath = null;
+		BodyChannel = null;
+		BodyWrittenLength = 0;
+		bFailed = false;
+	}
+
+	public void Append(byte[] Payload) {
+		if (BodyChannel != null) {
+			WriteBody(Payload, 0, Payload.length);
+			return;
+		}
+		if (Length + Payload.length > Bytes.length) {
+			Bytes = Arrays.copyOf(Bytes, Math.max(Bytes.length * 2, Length + Payload.length));
+		}
+		System.arraycopy(Payload, 0, Bytes, Length, Payload.length);
+		Length += Payload.length;
+		if (HeaderLength < 0) {
+			FindHeaderEnd();
+			if (HeaderLength >= 0 && ContentLength > 0 && BodyDirectory.isPresent()) {
+				OpenBody();
+			}
+		}
+	}
+
+	// Move the body received so far, along with the header, to a new file.
+	private void OpenBody() {
+		try {
+			BodyPath = Files.createTempFile(BodyDirectory.get(), ".body-", ".tmp");
+			BodyChannel = FileChannel.open(BodyPath, StandardOpenOption.WRITE);
+		} catch (IOException e) {
+			bFailed = true;
+			Discard();
+			return;
+		}
+		final int BodyStart = HeaderLength;
+		final int BodyEnd = Length;
+		Length = HeaderLength;
+		WriteBody(Bytes, BodyStart, BodyEnd - BodyStart);
+	}
+
+	private void WriteBody(byte[] Payload, int Offset, int Count) {
+		final ByteBuffer Buffer = ByteBuffer.wrap(Payload, Offset, Count);
+		try {
+			while (Buffer.hasRemaining()) {
+				BodyWrittenLength += BodyChannel.write(Buffer, BodyWrittenLength);
+			}
+		} catch (IOException e) {
+			bFailed = true;
+			Discard();
+		}
+	}
+
+	private void FindHeaderEnd() {
+		for (; ScanIndex + HEADER_END.length <= Length; ScanIndex++) {
+			if (Bytes[ScanIndex] == HEADER_END[0] && Bytes[ScanIndex + 1] == HEADER_END[1]
+					&& Bytes[ScanIndex + 2] == HEADER_END[2] && Bytes[ScanIndex + 3] == HEADER_END[3]) {
+				HeaderLength = ScanIndex + HEADER_END.length;
+				ContentLength = ParseContentLength(new String(Bytes, 0, ScanIndex, StandardCharsets.ISO_8859_1));
+				return;
+			}
+		}
+	}
+
+	// A message without Content-Length has no body.
+	private static long ParseContentLength(String Header) {
+		for (String Line : Header.split("\r\n")) {
+			final String[] Pair = Line.split(":", 2);
+			if (Pair.length == 2 && Pair[0].trim().equalsIgnoreCase(HttpMessage.CONTENT_LENGTH_HEADER)) {
+				try {
+					return Math.max(Long.parseLong(Pair[1].trim()), 0);
+				} catch (NumberFormatException e) {
+					return 0;
+				}
+			}
+		}
+		return 0;
+	}
+
+	// Write Payload, a packet Distance packets of PacketSize bytes past the next
+	// one to append, straight to its place in the body file, so that it need not
+	// wait for the gap before it. Returns false if Payload does not go in the file
+	// as a whole, e.g. if the body is not on disk. Only the last packet of a
+	// message may be shorter than PacketSize.
+	public Boolean WriteAhead(int Distance, int PacketSize, byte[] Payload) {
+		if (BodyChannel == null) {
+			return false;
+		}
+		final long Position = BodyWrittenLength + (long) Distance * PacketSize;
+		if (Position + Payload.length > ContentLength
+				|| (Payload.length != PacketSize && Position + Payload.length != ContentLength)) {
+			return false;
+		}
+		final ByteBuffer Buffer = ByteBuffer.wrap(Payload);
+		try {
+			while (Buffer.hasRemaining()) {
+				BodyChannel.write(Buffer, Position + Buffer.position());
+			}
+		} catch (IOException e) {
+			bFailed = true;
+			Discard();
+		}
+		return true;
+	}
+
+	// Take the next packet, of PacketSize bytes or up to the end of the body, as
+	// appended: WriteAhead already wrote it.
+	public void SkipAhead(int PacketSize) {
+		BodyWrittenLength = Math.min(BodyWrittenLength + PacketSize, ContentLength);
+	}
+
+	// Whether the header and Content-Length bytes of body were received.
+	public Boolean IsComplete() {
+		return HeaderLength >= 0 && Length + BodyWrittenLength >= HeaderLength + ContentLength;
+	}
+
+	// Whether the body could not be written to disk. The message is then lost.
+	public Boolean HasFailed() {
+		return bFailed;
+	}
+
+	public int GetLength() {
+		return Length;
+	}
+
+	public byte[] ToBytes() {
+		return Arrays.copyOf(Bytes, Length);
+	}
+
+	// The message, if well formed. A body written to disk is handed over to it.
+	public Optional<HttpMessage> ToMessage() {
+		if (BodyChannel == null) {
+			return HttpMessage.TryToParse(ToBytes());
+		}
+		try {
+			BodyChannel.force(false);
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "ERROR: IOException: " + e.toString());
+			return Optional.empty();
+		}
+		final Optional<HttpMessage> Message = HttpMessage.TryToParse(ToBytes(), Optional.of(BodyPath),
+				BodyWrittenLength);
+		if (Message.isPresent()) {
+			Close();
+			BodyPath = null;
+		}
+		return Message;
+	}
+
+	// Delete the body written to disk, if not handed over, e.g. when the message
+	// never completes.
+	public void Discard() {
+		Close();
+		if (BodyPath != null) {
+			try {
+				Files.deleteIfExists(BodyPath);
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, "ERROR: IOException: " + e.toString());
+			}
+			BodyPath = null;
+		}
+	}
+
+	private void Close() {
+		if (BodyChannel != null) {
+			try {
+				BodyChannel.close();
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, "ERROR: IOException: " + e.toString());
+			}
+			BodyChannel = null;
+		}
+	}
+}
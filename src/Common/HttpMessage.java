@@ -4,22 +4,83 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.Reader;
 import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Optional;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 public abstract class HttpMessage {
 
+	private final static Logger LOGGER = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+
 	protected static final String CONTENT_LENGTH_HEADER = "Content-Length";
 
 	protected Optional<String> Error;
 	protected Optional<String> HttpVersion;
 	protected HashMap<String, String> HeaderMap;
 	protected Optional<String> Body;
+	// Body left in a file instead, read only as needed. Body is then empty.
+	protected Optional<Path> BodyPath;
+	protected long BodyLength;
+	// Whether BodyPath is a temporary file of ours: a body received to disk.
+	protected Boolean bTemporaryBody;
+
+	protected HttpMessage() {
+		BodyPath = Optional.empty();
+		BodyLength = 0;
+		bTemporaryBody = false;
+	}
 
 	abstract public byte[] GetAsBytes();
 
+	public Optional<Path> GetBodyPath() {
+		return BodyPath;
+	}
+
+	// Put the body in the file at Target: move it there if it was received to
+	// disk, otherwise write it.
+	public void MoveBodyTo(Path Target) throws IOException {
+		if (BodyPath.isPresent() && bTemporaryBody) {
+			Files.move(BodyPath.get(), Target, StandardCopyOption.REPLACE_EXISTING);
+			BodyPath = Optional.of(Target);
+			bTemporaryBody = false;
+		} else if (BodyPath.isPresent()) {
+			Files.copy(BodyPath.get(), Target, StandardCopyOption.REPLACE_EXISTING);
+		} else {
+			Files.write(Target, Body.orElse("").getBytes());
+		}
+	}
+
+	// Delete the body received to disk, if it was not moved.
+	public void DiscardBody() {
+		if (BodyPath.isPresent() && bTemporaryBody) {
+			try {
+				Files.deleteIfExists(BodyPath.get());
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, "ERROR: IOException: " + e.toString());
+			}
+			BodyPath = Optional.empty();
+			bTemporaryBody = false;
+		}
+	}
+
+	// The bytes of the message, to read as they are sent. Empty if they cannot be
+	// read.
+	public Optional<MessageSource> GetSource() {
+		return Optional.of(new MessageSource(GetAsBytes()));
+	}
+
 	static public Optional<HttpMessage> TryToParse(byte[] Bytes) {
+		return TryToParse(Bytes, Optional.empty(), 0);
+	}
+
+	// Same, but Bytes is only the header if the body was received to the temporary
+	// file BodyPath. The message then owns the file.
+	static public Optional<HttpMessage> TryToParse(byte[] Bytes, Optional<Path> BodyPath, long BodyLength) {
 		final Optional<String> FirstLine = GetFirstLine(Bytes);
 		if (FirstLine.isPresent()) {
 			if (HttpRequest.IsFirstLine(FirstLine.get())) {
@@ -27,7 +88,7 @@ public abstract class HttpMessage {
 				BufferedReader BufferedReader = new BufferedReader(StringReader);
 				HttpRequest Request;
 				try {
-					Request = new HttpRequest(BufferedReader);
+					Request = new HttpRequest(BufferedReader, BodyPath, BodyLength);
 					if (Request.IsValid()) {
 						return Optional.of(Request);
 					}
@@ -35,7 +96,7 @@ public abstract class HttpMessage {
 				}
 
 			} else if (HttpResponse.IsFirstLine(FirstLine.get())) {
-				HttpResponse Response = new HttpResponse(new String(Bytes));
+				HttpResponse Response = new HttpResponse(new String(Bytes).split("\r\n", -1), BodyPath, BodyLength);
 				if (Response.IsValid()) {
 					return Optional.of(Response);
 				}
@@ -11,6 +11,7 @@ import java.net.Socket;
 import java.net.URL;
 import java.net.UnknownHostException;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -112,6 +113,12 @@ public class HttpRequest extends HttpMessage {
 	}
 
 	public HttpRequest(BufferedReader BufferedReader) throws IOException {
+		this(BufferedReader, Optional.empty(), 0);
+	}
+
+	// Same, but BufferedReader only has the header if the body was received to the
+	// temporary file BodyPath.
+	public HttpRequest(BufferedReader BufferedReader, Optional<Path> BodyPath, long BodyLength) throws IOException {
 		// Set default values.
 		Error = Optional.empty();
 		HttpOperation = Optional.empty();
@@ -166,23 +173,32 @@ public class HttpRequest extends HttpMessage {
 		}
 
 		if (HeaderMap.containsKey(CONTENT_LENGTH_HEADER)) {
-			int ContentLength = -1;
+			long ContentLength = -1;
 			try {
-				ContentLength = Integer.parseInt(HeaderMap.get(CONTENT_LENGTH_HEADER));
+				ContentLength = Long.parseLong(HeaderMap.get(CONTENT_LENGTH_HEADER));
 			} catch (NumberFormatException e) {
 				Error = Optional.of("ERROR: Invalid Content-Length: " + HeaderMap.get(CONTENT_LENGTH_HEADER));
 				return;
 			}
 
-			if (ContentLength >= 0) {
+			if (BodyPath.isPresent()) {
+				this.BodyPath = BodyPath;
+				this.BodyLength = BodyLength;
+				bTemporaryBody = true;
+				if (ContentLength != BodyLength) {
+					Error = Optional.of(
+							"ERROR: Content-Length is " + ContentLength + ", but the Body Length is " + BodyLength);
+					return;
+				}
+			} else if (ContentLength >= 0) {
 				if (ContentLength > 0) {
-					char BodyArray[] = new char[ContentLength];
-					final int BodyLength = BufferedReader.read(BodyArray, 0, ContentLength);
-					if (BodyLength == ContentLength) {
+					char BodyArray[] = new char[(int) ContentLength];
+					final int ReadLength = BufferedReader.read(BodyArray, 0, (int) ContentLength);
+					if (ReadLength == ContentLength) {
 						Body = Optional.of(new String(BodyArray));
 					} else {
 						Error = Optional.of(
-								"ERROR: Content-Length is " + ContentLength + ", but the Body Length is " + BodyLength);
+								"ERROR: Content-Length is " + ContentLength + ", but the Body Length is " + ReadLength);
 						return;
 					}
 				}
@@ -237,15 +253,17 @@ public class HttpRequest extends HttpMessage {
 			return false;
 		}
 		if (HttpOperation.isPresent()) {
+			// A body received to disk is a body too.
+			final Boolean bHasBody = Body.isPresent() || BodyPath.isPresent();
 			switch (HttpOperation.get()) {
 			case get:
-				if (!(Body.isEmpty() && BodyFromFile.isEmpty())) {
+				if (bHasBody || BodyFromFile.isPresent()) {
 					Error = Optional.of("ERROR: GET operation cannot use the -d and -f options.");
 					return false;
 				}
 				break;
 			case post:
-				if (!(Body.isPresent() ^ BodyFromFile.isPresent())) {
+				if (!(bHasBody ^ BodyFromFile.isPresent())) {
 					Error = Optional.of("ERROR: POST operation must have either the -d or -f option, but not both.");
 					return false;
 				}
@@ -418,6 +436,14 @@ public class HttpRequest extends HttpMessage {
 		return Body.isPresent() ? Body.get() : "";
 	}
 
+	public Optional<String> GetOutputFileName() {
+		return OutputFileName;
+	}
+
+	public boolean IsVerbose() {
+		return bVerbose;
+	}
+
 	public Optional<String> toString(boolean bVerbose) {
 
 		StringBuilder ResponseBuilder = new StringBuilder();
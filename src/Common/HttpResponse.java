@@ -2,6 +2,10 @@ package Common;
 
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -18,6 +22,12 @@ public class HttpResponse extends HttpMessage {
 	private Optional<String> Phrase;
 
 	public HttpResponse(String[] Lines) {
+		this(Lines, Optional.empty(), 0);
+	}
+
+	// Same, but Lines are only the header if the body was received to the temporary
+	// file BodyPath.
+	public HttpResponse(String[] Lines, Optional<Path> BodyPath, long BodyLength) {
 		Error = Optional.empty();
 		HttpVersion = Optional.empty();
 		StatusCode = Optional.empty();
@@ -79,7 +89,11 @@ public class HttpResponse extends HttpMessage {
 		i++;
 
 		// If we assume there is no \r\n in body, it takes one line.
-		if (i < Lines.length) {
+		if (BodyPath.isPresent()) {
+			this.BodyPath = BodyPath;
+			this.BodyLength = BodyLength;
+			bTemporaryBody = true;
+		} else if (i < Lines.length) {
 //			System.out.println("#########");
 //			System.out.println(Lines[i]);
 //			System.out.println("#########");
@@ -90,10 +104,10 @@ public class HttpResponse extends HttpMessage {
 			Body = Optional.of(Lines[i]);
 		}
 
-		int ContentLength = -1;
+		long ContentLength = -1;
 		if (HeaderMap.containsKey(CONTENT_LENGTH_HEADER)) {
 			try {
-				ContentLength = Integer.parseInt(HeaderMap.get(CONTENT_LENGTH_HEADER));
+				ContentLength = Long.parseLong(HeaderMap.get(CONTENT_LENGTH_HEADER));
 			} catch (NumberFormatException e) {
 				Error = Optional.of("ERROR: Invalid Content-Length: " + HeaderMap.get(CONTENT_LENGTH_HEADER));
 				return;
@@ -101,12 +115,19 @@ public class HttpResponse extends HttpMessage {
 		}
 
 		if (Body.isPresent()) {
-			if (ContentLength != Body.get().length()) {
+			// Content-Length counts bytes, but older servers counted characters.
+			if (ContentLength != Body.get().length() && ContentLength != Body.get().getBytes().length) {
 				Error = Optional.of(
 						"ERROR: Content-Length is " + ContentLength + ", but body length is  " + Body.get().length());
 				// System.out.println(Error.get());
 				return;
 			}
+		} else if (this.BodyPath.isPresent()) {
+			if (ContentLength != BodyLength) {
+				Error = Optional.of(
+						"ERROR: Content-Length is " + ContentLength + ", but body length is  " + BodyLength);
+				return;
+			}
 		} else {
 			if (ContentLength != 0) {
 				Error = Optional.of("ERROR: Content-Length should be 0, but is: " + ContentLength);
@@ -151,6 +172,30 @@ public class HttpResponse extends HttpMessage {
 		HeaderMap.put("Content-Length", Integer.toString(Body.length()));
 	}
 
+	// Response with the BodyLength bytes of the file at BodyPath as its body.
+	// FileType may be null if unknown.
+	public HttpResponse(int StatusCode, Path BodyPath, long BodyLength, String FileType) {
+		Error = Optional.empty();
+		HttpVersion = Optional.of("HTTP/1.0");
+		this.StatusCode = Optional.of(StatusCode);
+		Phrase = Optional.of(Phrases.get(StatusCode));
+		HeaderMap = new HashMap<String, String>();
+		if (FileType != null) {
+			HeaderMap.put("Content-Type", FileType);
+		}
+		// Only show inline 'text' type.
+		if (FileType != null && FileType.split("/")[0].equalsIgnoreCase("text")) {
+			HeaderMap.put("Content-Disposition", "inline");
+		} else {
+			HeaderMap.put("Content-Disposition", "attachment");
+		}
+		HeaderMap.put("Connection", "closed");
+		Body = Optional.empty();
+		this.BodyPath = Optional.of(BodyPath);
+		this.BodyLength = BodyLength;
+		HeaderMap.put("Content-Length", Long.toString(BodyLength));
+	}
+
 	public static Boolean IsFirstLine(String FirstLine) {
 		// FIXME: I could do better check for example with version.
 		final String[] Arguments = FirstLine.split(" ", 3);
@@ -178,13 +223,33 @@ public class HttpResponse extends HttpMessage {
 	}
 
 	public byte[] GetAsBytes() {
-		// FIXME: This is very inefficient.
-		ArrayList<Byte> Bytes = new ArrayList<Byte>();
-
 		// FIXME: Assume it is a valid Response.
-		Bytes.addAll(Arrays.asList(ByteUtils.ToObjects(toString(true).get().getBytes())));
+		if (BodyPath.isPresent()) {
+			final byte[] Head = GetHead().getBytes();
+			try {
+				final byte[] BodyBytes = Files.readAllBytes(BodyPath.get());
+				final byte[] Bytes = Arrays.copyOf(Head, Head.length + BodyBytes.length);
+				System.arraycopy(BodyBytes, 0, Bytes, Head.length, BodyBytes.length);
+				return Bytes;
+			} catch (IOException e) {
+				return Head;
+			}
+		}
+		return toString(true).get().getBytes();
+	}
 
-		return ByteUtils.ToPrimitives(Bytes.toArray());
+	// Header in memory, body straight from its file if it has one.
+	@Override
+	public Optional<MessageSource> GetSource() {
+		if (BodyPath.isEmpty()) {
+			return super.GetSource();
+		}
+		try {
+			return Optional.of(new MessageSource(GetHead().getBytes(),
+					FileChannel.open(BodyPath.get(), StandardOpenOption.READ), BodyLength));
+		} catch (IOException e) {
+			return Optional.empty();
+		}
 	}
 
 	public Optional<String> toString(boolean bVerbose) {
@@ -193,20 +258,40 @@ public class HttpResponse extends HttpMessage {
 		}
 
 		StringBuilder ResponseBuilder = new StringBuilder();
-		if (bVerbose) {
-			ResponseBuilder.append(HttpVersion.get() + " " + StatusCode.get() + " " + Phrase.get() + "\r\n");
-			for (String Key : HeaderMap.keySet()) {
-				ResponseBuilder.append(Key + ": " + HeaderMap.get(Key) + "\r\n");
-			}
-		}
-		ResponseBuilder.append("\r\n");
+		ResponseBuilder.append(bVerbose ? GetHead() : "\r\n");
 		if (Body.isPresent()) {
 			ResponseBuilder.append(Body.get());
+		} else if (BodyPath.isPresent()) {
+			try {
+				ResponseBuilder.append(new String(Files.readAllBytes(BodyPath.get())));
+			} catch (IOException e) {
+				return Optional.empty();
+			}
 		}
 
 		return Optional.of(ResponseBuilder.toString());
 	}
 
+	// Status line and headers, up to the empty line before the body.
+	public String GetHead() {
+		StringBuilder ResponseBuilder = new StringBuilder();
+		ResponseBuilder.append(HttpVersion.get() + " " + StatusCode.get() + " " + Phrase.get() + "\r\n");
+		for (String Key : HeaderMap.keySet()) {
+			ResponseBuilder.append(Key + ": " + HeaderMap.get(Key) + "\r\n");
+		}
+		ResponseBuilder.append("\r\n");
+		return ResponseBuilder.toString();
+	}
+
+	// Length of the body in bytes, as a valid response gives it in its header.
+	public long GetContentLength() {
+		try {
+			return Long.parseLong(HeaderMap.getOrDefault(CONTENT_LENGTH_HEADER, "0"));
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
 	static public String[] FromBufferedReader(BufferedReader BufferedReader) throws IOException {
 		ArrayList<String> ResponseLines = new ArrayList<String>();
 		String Line;
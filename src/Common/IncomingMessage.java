@@ -0,0 +1,253 @@
+package Common;
+
+import java.net.InetAddress;
+import java.nio.file.Path;
+import java.util.BitSet;
+import java.util.Optional;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// A message coming in, packet by packet: the receive side of a
+// SelectiveRepeatReceiver, or of a stream of a StreamMultiplexer. In-order
+// packets are framed as they arrive, later ones are held until the gap before
+// them fills, or written straight to their place in the body file. Every ACK
+// describes the whole window with a SACK. In-order packets that leave no gap
+// may be ACKed late, AckEvery at a time or after AckDelay. Once complete, only
+// the base is kept, to ACK late duplicates again.
+public class IncomingMessage {
+
+	private final static Logger LOGGER = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+
+	private final DatagramReactor Reactor;
+	private final TransportStatistics Statistics;
+	private final SequenceSpace Space;
+	private final int Version;
+	private final int WindowSize;
+	// Packets are all this long but the last one. Legacy payloads lose their
+	// trailing zeros, so their offset is only known in order.
+	private final int PayloadSize;
+	// Out-of-order packets of a body received to disk go straight to the file.
+	private final Boolean bDirectWrites;
+	private final int AckEvery;
+	private final long AckDelay;
+	private final int StreamId;
+	// Prefix of the log lines, to tell streams apart.
+	private final String Label;
+
+	// Null once complete.
+	private HttpFramer Framer;
+	private ReorderBuffer BufferedPackets;
+	private int BaseSequenceNumber;
+	// A version 2 header flags the last packet.
+	private Boolean bEndReceived;
+	private long CompleteTime;
+
+	// Delayed ACK: in-order packets not ACKed yet, when their ACK is due, and the
+	// SEQ of the last of them. ACKs go to where the Data came from.
+	private int PendingAckCount;
+	private long AckDeadline;
+	private int PendingAckSequenceNumber;
+	private InetAddress PeerAddress;
+	private int PeerPortNumber;
+
+	// The body goes to BodyDirectory, in memory if empty. StreamId only goes into
+	// a version 4 header.
+	public IncomingMessage(DatagramReactor Reactor, ConnectionContext Context, int StreamId,
+			int BaseSequenceNumber, Optional<Path> BodyDirectory) {
+		final TransportOption Option = Context.GetOption();
+		this.Reactor = Reactor;
+		this.Statistics = Context.GetStatistics();
+		this.Space = Context.GetSequenceSpace();
+		this.Version = Context.GetHeaderVersion();
+		this.WindowSize = Context.GetWindowSize();
+		this.PayloadSize = UdpMessage.GetPayloadMaxSize(Version, Context.GetDatagramSize());
+		this.bDirectWrites = Option.bDirectWrites && Version >= UdpMessage.VERSION_2;
+		this.AckEvery = Option.AckEvery;
+		this.AckDelay = Option.AckDelay * 1_000_000L;
+		this.StreamId = StreamId;
+		this.Label = Context.IsMultiplexed() ? "Stream " + StreamId + ": " : "";
+		this.Framer = new HttpFramer(BodyDirectory);
+		this.BufferedPackets = new ReorderBuffer(WindowSize);
+		this.BaseSequenceNumber = BaseSequenceNumber;
+		this.bEndReceived = false;
+		this.PendingAckCount = 0;
+		this.AckDeadline = DatagramReactor.NO_DEADLINE;
+	}
+
+	// Bytes of the message received before its first SEQ, e.g. in the SYNACK.
+	public void Append(byte[] Prefix) {
+		Framer.Append(Prefix);
+	}
+
+	public int GetBaseSequenceNumber() {
+		return BaseSequenceNumber;
+	}
+
+	public Boolean IsComplete() {
+		return Framer == null;
+	}
+
+	// When the message was handed over, if complete.
+	public long GetCompleteTime() {
+		return CompleteTime;
+	}
+
+	// Whether the body could not be written to disk. The message is then lost.
+	public Boolean HasFailed() {
+		return Framer != null && Framer.HasFailed();
+	}
+
+	// Process a Data packet with a payload, and ACK it now or later. Returns
+	// whether it was new in-order data, the only kind that can complete the
+	// message.
+	public Boolean OnData(UdpMessage Message) {
+		// Check if within window: the distance from the base tells it in one step.
+		final int SequenceNumber = Message.GetSequenceNumber();
+		final int Offset = Space.Distance(BaseSequenceNumber, SequenceNumber);
+		PeerAddress = Message.GetAddress();
+		PeerPortNumber = Message.GetPortNumber();
+		if (!IsComplete() && 0 <= Offset && Offset < WindowSize) {
+			// Only packets that arrive in order and leave no gap may be ACKed late.
+			final Boolean bInOrder = SequenceNumber == BaseSequenceNumber && BufferedPackets.IsEmpty();
+			if (Message.HasFlag(UdpMessage.FLAG_END_OF_MESSAGE)) {
+				bEndReceived = true;
+			}
+			Boolean bAppended = false;
+			if (SequenceNumber == BaseSequenceNumber) {
+				// If SEQ is base, move window and append data.
+				Framer.Append(Message.GetPayload().get());
+				bAppended = true;
+				BaseSequenceNumber = Space.Next(BaseSequenceNumber);
+				// Then drain the buffered packets that follow without a gap.
+				// Those without a payload were already written to the body file.
+				for (int i = BufferedPackets.CountRun(BaseSequenceNumber); i > 0; i--) {
+					final byte[] Payload = BufferedPackets.Take(BaseSequenceNumber);
+					if (Payload != null) {
+						Framer.Append(Payload);
+					} else {
+						Framer.SkipAhead(PayloadSize);
+					}
+					BaseSequenceNumber = Space.Next(BaseSequenceNumber);
+				}
+			} else if (bDirectWrites && Framer.WriteAhead(Offset, PayloadSize, Message.GetPayload().get())) {
+				// Otherwise, write data to its place in the body file if it goes there,
+				// and only remember that it did.
+				BufferedPackets.Mark(SequenceNumber);
+			} else {
+				// Or buffer data. The decoded payload is not shared, so keep it as is.
+				BufferedPackets.Put(SequenceNumber, Message.GetPayload().get());
+			}
+			// Then, ACK describing the whole window. Out-of-order and gap-filling
+			// packets are ACKed immediately so that the sender learns about holes.
+			PendingAckCount++;
+			PendingAckSequenceNumber = SequenceNumber;
+			if (bInOrder && PendingAckCount < AckEvery) {
+				if (PendingAckCount == 1) {
+					AckDeadline = System.nanoTime() + AckDelay;
+				}
+			} else {
+				SendAck();
+			}
+			return bAppended;
+		} else if (Offset < 0 && (IsComplete() || -WindowSize <= Offset)) {
+			// If in previous window, retransmit ACK.
+			LOGGER.log(Level.INFO,
+					Label + "Received '" + SequenceNumber + "' which is in previous window. Resending ACK...");
+			PendingAckCount = Math.max(PendingAckCount, 1);
+			PendingAckSequenceNumber = SequenceNumber;
+			SendAck();
+		} else {
+			// Otherwise, ignore.
+			LOGGER.log(Level.INFO, Label + "Received '" + SequenceNumber
+					+ "' which is neither in current window not in previous window. Ignoring...");
+		}
+		return false;
+	}
+
+	// When the delayed ACK is due, or NO_DEADLINE if none is pending.
+	public long GetAckDeadline() {
+		return PendingAckCount > 0 ? AckDeadline : DatagramReactor.NO_DEADLINE;
+	}
+
+	// Send the delayed ACK if it is due.
+	public void SendDueAck(long NowNanos) {
+		if (PendingAckCount > 0 && NowNanos - AckDeadline >= 0) {
+			SendAck();
+		}
+	}
+
+	// The message, once all of it is in and it is a well formed HTTP message.
+	// The framer knows once the header and Content-Length bytes of body are in.
+	// The last packet flag covers a Content-Length that disagrees with the data.
+	// What was only needed to reassemble the message is dropped then.
+	public Optional<HttpMessage> TryComplete() {
+		if (IsComplete() || !BufferedPackets.IsEmpty() || !(Framer.IsComplete() || bEndReceived)) {
+			return Optional.empty();
+		}
+		final Optional<HttpMessage> PotentialHttpMessage = Framer.ToMessage();
+		if (PotentialHttpMessage.isPresent()) {
+			// Do not leave the last packets for the sender to time out.
+			if (PendingAckCount > 0) {
+				SendAck();
+			}
+			Framer = null;
+			BufferedPackets = null;
+			CompleteTime = System.nanoTime();
+		}
+		return PotentialHttpMessage;
+	}
+
+	// Delete the body written to disk of a message that will never complete.
+	public void Discard() {
+		if (!IsComplete()) {
+			Framer.Discard();
+		}
+	}
+
+	// ACK a late duplicate of a message that was complete and forgotten since, on
+	// stream StreamId. All of it came, so the ACK covers everything up to the
+	// duplicate.
+	public static void AckDuplicate(DatagramReactor Reactor, ConnectionContext Context, int StreamId,
+			UdpMessage Message) {
+		final SequenceSpace Space = Context.GetSequenceSpace();
+		final SelectiveAck Sack = new SelectiveAck(Space, Context.GetWindowSize(),
+				Space.Next(Message.GetSequenceNumber()), new BitSet());
+		if (SendAck(Reactor, Context.GetHeaderVersion(), StreamId, Sack, Message)) {
+			Context.GetStatistics().OnAckSent(1);
+		}
+	}
+
+	private void SendAck() {
+		// The ACK carries the next expected SEQ and a bitmap of buffered packets, so
+		// that a single ACK makes up for lost ones.
+		final SelectiveAck Sack = new SelectiveAck(Space, WindowSize, BaseSequenceNumber,
+				IsComplete() ? new BitSet() : BufferedPackets.ToBitSet(BaseSequenceNumber));
+		if (SendAck(Reactor, Version, StreamId, Sack, PendingAckSequenceNumber, PeerAddress, PeerPortNumber)) {
+			Statistics.OnAckSent(PendingAckCount);
+		}
+		PendingAckCount = 0;
+	}
+
+	private static Boolean SendAck(DatagramReactor Reactor, int Version, int StreamId, SelectiveAck Sack,
+			UdpMessage DataMessage) {
+		return SendAck(Reactor, Version, StreamId, Sack, DataMessage.GetSequenceNumber(), DataMessage.GetAddress(),
+				DataMessage.GetPortNumber());
+	}
+
+	private static Boolean SendAck(DatagramReactor Reactor, int Version, int StreamId, SelectiveAck Sack,
+			int AcknowledgmentNumber, InetAddress Address, int PortNumber) {
+		final Optional<UdpMessage> AckMessage = UdpMessage.New(EUdpPacketType.Ack, 0, AcknowledgmentNumber, Address,
+				PortNumber, Sack.ToBytes(UdpMessage.GetPayloadMaxSize(Version)));
+		if (AckMessage.isEmpty()) {
+			LOGGER.log(Level.WARNING, "Could not generate ACK packet.");
+			return false;
+		}
+		AckMessage.get().SetVersion(Version);
+		AckMessage.get().SetStreamId(StreamId);
+		if (LOGGER.isLoggable(Level.FINE)) {
+			LOGGER.log(Level.FINE, "Sending : " + AckMessage.get().toString() + " " + Sack.toString());
+		}
+		DatagramChannelUtils.Send(Reactor, Constants.ROUTER_ADDRESS, AckMessage.get());
+		return true;
+	}
+}
@@ -0,0 +1,86 @@
+package Common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// Bytes of a message, read front to back as its packets are encoded: a head in
+// memory, then optionally a body read from a file. Only what is being sent is
+// ever in memory, so a large file costs its in-flight window, not its size.
+public class MessageSource implements AutoCloseable {
+
+	private final static Logger LOGGER = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+
+	private final byte[] Head;
+	// Null if the whole message is in Head.
+	private final FileChannel Body;
+	private final long Length;
+	private long Position;
+
+	public MessageSource(byte[] Bytes) {
+		this(Bytes, null, 0);
+	}
+
+	public MessageSource(byte[] Head, FileChannel Body, long BodyLength) {
+		this.Head = Head;
+		this.Body = Body;
+		this.Length = Head.length + BodyLength;
+		this.Position = 0;
+	}
+
+	public long GetLength() {
+		return Length;
+	}
+
+	// Skip bytes the peer already has.
+	public void Skip(long Count) {
+		Position = Math.min(Length, Position + Count);
+	}
+
+	// Copy the next Count bytes into Target. Returns false if the body is shorter
+	// than announced or cannot be read.
+	public Boolean Read(ByteBuffer Target, int Count) {
+		final int HeadCount = (int) Math.max(0, Math.min(Count, Head.length - Position));
+		if (HeadCount > 0) {
+			Target.put(Head, (int) Position, HeadCount);
+			Position += HeadCount;
+		}
+		if (HeadCount == Count) {
+			return true;
+		}
+		if (Body == null) {
+			return false;
+		}
+		final int Limit = Target.limit();
+		Target.limit(Target.position() + Count - HeadCount);
+		try {
+			while (Target.hasRemaining()) {
+				final int ReadCount = Body.read(Target, Position - Head.length);
+				if (ReadCount < 0) {
+					return false;
+				}
+				Position += ReadCount;
+			}
+			return true;
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "ERROR: IOException: " + e.toString());
+			return false;
+		} finally {
+			Target.limit(Limit);
+		}
+	}
+
+	@Override
+	public void close() {
+		if (Body == null) {
+			return;
+		}
+		try {
+			Body.close();
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "ERROR: IOException: " + e.toString());
+		}
+	}
+}
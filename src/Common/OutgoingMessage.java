@@ -0,0 +1,229 @@
+package Common;
+
+import java.nio.ByteBuffer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// A message going out, packet by packet: the send side of a
+// SelectiveRepeatSender, or of a stream of a StreamMultiplexer. Packets are
+// read from the source as the window opens and encoded once into the window,
+// ACKs are read in place, and lost packets are resent on SACK evidence or on
+// timeout. The congestion window, the RTT estimate and the pacer are those of
+// the connection; the caller decides when there is room for a new packet.
+public class OutgoingMessage {
+
+	private final static Logger LOGGER = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+
+	private final DatagramReactor Reactor;
+	private final ConnectionContext Context;
+	private final RttEstimator Estimator;
+	private final CongestionController Controller;
+	private final TransportStatistics Statistics;
+	private final TimerWheel Wheel;
+	private final Pacer Pacer;
+	private final SequenceSpace Space;
+	private final int Version;
+	private final int WindowSize;
+	private final int PayloadSize;
+	private final byte[] AddressBytes;
+	private final int PortNumber;
+	private final int StreamId;
+	// Prefix of the log lines, to tell streams apart.
+	private final String Label;
+	// Read as packets are sent, past the bytes the peer already has.
+	private final MessageSource Source;
+	private final long Length;
+	private final int PacketCount;
+	private final SendWindow Window;
+
+	// Source is read from its current position, Length bytes in all, and is
+	// closed with the message. StreamId only goes into a version 4 header.
+	public OutgoingMessage(DatagramReactor Reactor, ConnectionContext Context, Pacer Pacer, byte[] AddressBytes,
+			int PortNumber, int StreamId, MessageSource Source, long Length, int StartSequenceNumber) {
+		this.Reactor = Reactor;
+		this.Context = Context;
+		this.Estimator = Context.GetEstimator();
+		this.Controller = Context.GetController();
+		this.Statistics = Context.GetStatistics();
+		this.Wheel = TimerWheel.GetShared();
+		this.Pacer = Pacer;
+		this.Space = Context.GetSequenceSpace();
+		this.Version = Context.GetHeaderVersion();
+		this.WindowSize = Context.GetWindowSize();
+		// The negotiated header and datagram size decide how much payload fits in a
+		// packet.
+		this.PayloadSize = UdpMessage.GetPayloadMaxSize(Version, Context.GetDatagramSize());
+		this.AddressBytes = AddressBytes;
+		this.PortNumber = PortNumber;
+		this.StreamId = StreamId;
+		this.Label = Context.IsMultiplexed() ? "Stream " + StreamId + ": " : "";
+		this.Source = Source;
+		this.Length = Length;
+		this.PacketCount = (int) Math.ceil(Length * 1.0 / PayloadSize);
+		// In-flight packets, their send times and retransmission timers. A timer
+		// that fires marks its slot as expired and wakes the reactor up. A short
+		// message needs no more room than its packets.
+		this.Window = new SendWindow(Space, StartSequenceNumber, Math.min(WindowSize, PacketCount),
+				Reactor.GetBufferPool(), Reactor::Wakeup);
+	}
+
+	public int GetStreamId() {
+		return StreamId;
+	}
+
+	public int GetPacketCount() {
+		return PacketCount;
+	}
+
+	public int GetInFlightCount() {
+		return Window.GetInFlightCount();
+	}
+
+	// Whether a packet that was never sent may go out, as far as the window of
+	// the message goes.
+	public Boolean HasNewPacket() {
+		return Window.GetNextPacketNumber() < PacketCount && !Window.IsFull();
+	}
+
+	public Boolean HasExpired() {
+		return Window.HasExpired();
+	}
+
+	// Whether every packet is ACKed.
+	public Boolean IsDone() {
+		return Window.GetBasePacketNumber() == PacketCount;
+	}
+
+	// Process the ACK in Raw. Besides its own number, an ACK may carry a SACK that
+	// covers several packets at once.
+	public void OnAck(ByteBuffer Raw) {
+		final int AcknowledgeNumber = UdpMessage.PeekAcknowledgmentNumber(Raw);
+		final int SackOffset = UdpMessage.PeekPayloadOffset(Raw);
+		final int SackLength = UdpMessage.PeekPayloadLength(Raw);
+		if (!Window.IsInFlight(AcknowledgeNumber) && SackLength == 0) {
+			LOGGER.log(Level.WARNING, Label + "Timer for packer number " + AcknowledgeNumber + " was not started.");
+		}
+		final long CurrentTime = System.nanoTime();
+		if (Window.IsInFlight(AcknowledgeNumber)) {
+			// Sample RTT from the send timestamp of the packet that triggered the ACK.
+			if (!Window.IsRetransmitted(AcknowledgeNumber)) {
+				Estimator.AddSample(CurrentTime - Window.GetSendTime(AcknowledgeNumber));
+			}
+			Acknowledge(AcknowledgeNumber, CurrentTime);
+		}
+		if (SackLength > 0) {
+			// Packets before the cumulative SEQ, from the base of the window on. They
+			// all leave the window below, so each is walked over once.
+			final int Cumulative = SelectiveAck.PeekCumulativeSequenceNumber(Space, Raw, SackOffset, SackLength);
+			final int CumulativeCount = Math.min(Space.Distance(Window.GetBaseSequenceNumber(), Cumulative),
+					Window.GetInFlightCount());
+			for (int i = 0; i < CumulativeCount; i++) {
+				final int SequenceNumber = Space.Add(Window.GetBaseSequenceNumber(), i);
+				if (Window.IsInFlight(SequenceNumber)) {
+					Acknowledge(SequenceNumber, CurrentTime);
+				}
+			}
+			// Then only the packets the bitmap marks, up to the last one sent.
+			final int First = Space.Next(Cumulative);
+			final int BitmapCount = Math.min(Space.Distance(First, Window.GetNextSequenceNumber()), WindowSize);
+			int Index = SelectiveAck.PeekNextReceived(Space, Raw, SackOffset, SackLength, 0);
+			while (0 <= Index && Index < BitmapCount) {
+				final int SequenceNumber = Space.Add(First, Index);
+				if (Window.IsInFlight(SequenceNumber)) {
+					Acknowledge(SequenceNumber, CurrentTime);
+				}
+				Index = SelectiveAck.PeekNextReceived(Space, Raw, SackOffset, SackLength, Index + 1);
+			}
+		}
+		// Move window until a packet still in flight is found.
+		Window.Slide();
+		Window.DetectLosses(Context.GetOption().DupThreshold);
+	}
+
+	// Resend packets that later packets overtook, without waiting for their
+	// timer, then packets whose timer expired.
+	public void Retransmit() {
+		int SequenceNumber;
+		while ((SequenceNumber = Window.PollLost()) >= 0) {
+			// The window shrinks once per window of data of the connection, not once per
+			// lost packet. A lost packet was never resent, so its send time is that of
+			// its first send.
+			if (Window.GetSendTime(SequenceNumber) - Context.GetRecoveryTime() > 0) {
+				Controller.OnFastRetransmit(System.nanoTime());
+				Context.SetRecoveryTime(System.nanoTime());
+				LOGGER.log(Level.INFO, Label + "Fast retransmit. " + Controller.toString());
+			}
+			Window.OnFastRetransmit(SequenceNumber, System.nanoTime());
+			Resend(SequenceNumber);
+			Statistics.OnFastRetransmit();
+		}
+		while ((SequenceNumber = Window.PollExpired()) >= 0) {
+			// Back off once per timeout of the oldest packet, not once per packet.
+			if (SequenceNumber == Window.GetBaseSequenceNumber()) {
+				Estimator.Backoff();
+				Controller.OnTimeout(System.nanoTime());
+				LOGGER.log(Level.INFO, Label + "Timeout. " + Estimator.toString() + " " + Controller.toString());
+			}
+			Window.OnRetransmit(SequenceNumber, System.nanoTime());
+			Resend(SequenceNumber);
+		}
+	}
+
+	// Send the next packet, encoded straight into its slot. Packets leave in
+	// order, so the source is always at the right place. Returns false if the
+	// source cannot be read.
+	public Boolean SendNext() {
+		final int PacketNumber = Window.GetNextPacketNumber();
+		final ByteBuffer Datagram = Window.GetNextDatagram();
+		final int PacketLength = (int) Math.min(PayloadSize, Length - (long) PacketNumber * PayloadSize);
+		// The last packet of the message is flagged as such.
+		final int Flags = PacketNumber == PacketCount - 1 ? UdpMessage.FLAG_END_OF_MESSAGE : 0;
+		UdpMessage.WriteHeader(Datagram, Version, EUdpPacketType.Data, Window.GetNextSequenceNumber(), 0,
+				AddressBytes, PortNumber, Flags, StreamId, PacketLength);
+		final Boolean bRead = Source.Read(Datagram, PacketLength);
+		Datagram.flip();
+		if (!bRead) {
+			return false;
+		}
+		// Start timer and send.
+		final int SequenceNumber = Window.Add(System.nanoTime());
+		Window.Arm(Wheel, SequenceNumber, System.nanoTime() + Estimator.GetTimeoutNanos());
+		if (LOGGER.isLoggable(Level.FINE)) {
+			LOGGER.log(Level.FINE, "Sending : " + UdpMessage.ConstructFromBuffer(Datagram).get().toString());
+		}
+		Pacer.OnSend(System.nanoTime(), Datagram.remaining());
+		DatagramChannelUtils.SendRaw(Reactor, Constants.ROUTER_ADDRESS, Datagram);
+		Statistics.OnDataSent(false);
+		return true;
+	}
+
+	// Stop the timers left and return the buffers, whether done or aborting.
+	public void Close() {
+		Window.Close(Wheel);
+		Source.close();
+	}
+
+	// Mark SequenceNumber, still in flight, as received.
+	private void Acknowledge(int SequenceNumber, long CurrentTime) {
+		// Open the window for each newly ACKed packet.
+		Controller.OnAck(CurrentTime, Estimator);
+		if (Window.IsFastRetransmitted(SequenceNumber)) {
+			Statistics.OnTimeoutAvoided();
+		}
+		// Stop timer, but leave the slot set to received.
+		Wheel.Cancel(Window.GetTimer(SequenceNumber));
+		Window.OnAcked(SequenceNumber);
+	}
+
+	// Restart the timer and resend the datagram as it was encoded the first time.
+	private void Resend(int SequenceNumber) {
+		Window.Arm(Wheel, SequenceNumber, System.nanoTime() + Estimator.GetTimeoutNanos());
+		if (LOGGER.isLoggable(Level.FINE)) {
+			LOGGER.log(Level.FINE, Label + "Resending : SEQ: " + SequenceNumber);
+		}
+		final ByteBuffer Datagram = Window.GetDatagram(SequenceNumber);
+		Pacer.OnSend(System.nanoTime(), Datagram.remaining());
+		DatagramChannelUtils.SendRaw(Reactor, Constants.ROUTER_ADDRESS, Datagram);
+		Statistics.OnDataSent(true);
+	}
+}
@@ -0,0 +1,92 @@
+package Common;
+
+// Token bucket spreading data packets over time instead of sending a window
+// back to back. Tokens are bytes, earned at the pacing rate up to a bucket
+// that bounds bursts. The rate is either configured or, in auto mode, the
+// congestion window sent over one smoothed RTT.
+public class Pacer {
+
+	// Auto mode paces slightly faster than cwnd/SRTT, so that pacing alone does
+	// not hold the window back.
+	private static final double AUTO_GAIN = 1.25;
+	// The shared wheel ticks every millisecond. The bucket holds at least this
+	// much time worth of tokens, otherwise the tick would cap the rate.
+	private static final long MIN_BUCKET_NANOS = 2_000_000L;
+
+	private final TransportOption Option;
+	private final CongestionController Controller;
+	private final RttEstimator Estimator;
+	private final int PacketSize;
+	// Wakes the sender up once enough tokens are earned.
+	private final TimerWheel.Timer Timer;
+	private double Tokens;
+	private long LastRefill;
+
+	// PacketSize is the size of a full data datagram.
+	public Pacer(ConnectionContext Context, int PacketSize, Runnable Wakeup) {
+		this.Option = Context.GetOption();
+		this.Controller = Context.GetController();
+		this.Estimator = Context.GetEstimator();
+		this.PacketSize = PacketSize;
+		this.Timer = new TimerWheel.Timer(Wakeup);
+		// Start with a full bucket.
+		this.Tokens = Double.MAX_VALUE;
+		this.LastRefill = System.nanoTime();
+	}
+
+	// Pacing rate in bytes per second, or 0 if sending is not paced.
+	public double GetRate() {
+		if (Option.PaceRate == TransportOption.PACE_OFF) {
+			return 0;
+		} else if (Option.PaceRate == TransportOption.PACE_AUTO) {
+			// No RTT sample yet, nothing to spread the window over.
+			final long Rtt = Estimator.GetSmoothedRttNanos();
+			return Rtt > 0 ? AUTO_GAIN * Controller.GetWindow() * PacketSize * 1e9 / Rtt : 0;
+		} else {
+			return Option.PaceRate * 1000.0;
+		}
+	}
+
+	// How long to wait before a full packet may be sent, 0 if it may be sent now.
+	public long GetDelayNanos(long NowNanos) {
+		final double Rate = GetRate();
+		if (Rate <= 0) {
+			return 0;
+		}
+		Refill(NowNanos, Rate);
+		if (Tokens >= PacketSize) {
+			return 0;
+		}
+		return (long) Math.ceil((PacketSize - Tokens) * 1e9 / Rate);
+	}
+
+	// Spend tokens for a packet sent. Retransmissions are charged too, but are
+	// never held back, so the bucket may go into debt.
+	public void OnSend(long NowNanos, int Bytes) {
+		final double Rate = GetRate();
+		if (Rate > 0) {
+			Refill(NowNanos, Rate);
+			Tokens -= Bytes;
+		}
+	}
+
+	// Wake the sender up after DelayNanos.
+	public void Arm(long NowNanos, long DelayNanos) {
+		TimerWheel.GetShared().Schedule(Timer, NowNanos + DelayNanos);
+	}
+
+	public void Close() {
+		TimerWheel.GetShared().Cancel(Timer);
+	}
+
+	private void Refill(long NowNanos, double Rate) {
+		final double Bucket = Math.max(Constants.PACER_BURST * PacketSize, Rate * MIN_BUCKET_NANOS / 1e9);
+		Tokens = Math.min(Bucket, Tokens + (NowNanos - LastRefill) * Rate / 1e9);
+		LastRefill = NowNanos;
+	}
+
+	public String toString() {
+		final double Rate = GetRate();
+		return Rate > 0 ? "Pacing: " + String.format("%.1f", Rate / 1000) + " KB/s" : "Pacing: off";
+	}
+}
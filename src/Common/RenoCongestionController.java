@@ -0,0 +1,49 @@
+package Common;
+
+// Slow start followed by additive increase, multiplicative decrease.
+public class RenoCongestionController implements CongestionController {
+
+	private final int WindowLimit;
+	private double Window;
+	private double SlowStartThreshold;
+
+	public RenoCongestionController(int WindowLimit) {
+		this.WindowLimit = WindowLimit;
+		Window = Constants.INITIAL_WINDOW_SIZE;
+		SlowStartThreshold = WindowLimit;
+	}
+
+	@Override
+	public int GetWindow() {
+		return (int) Math.min(Math.max(Window, 1), WindowLimit);
+	}
+
+	@Override
+	public void OnAck(long NowNanos, RttEstimator Estimator) {
+		if (Window < SlowStartThreshold) {
+			// Slow start: double every RTT.
+			Window += 1;
+		} else {
+			// Congestion avoidance: one packet per RTT.
+			Window += 1 / Window;
+		}
+		Window = Math.min(Window, WindowLimit);
+	}
+
+	@Override
+	public void OnTimeout(long NowNanos) {
+		SlowStartThreshold = Math.max(Window / 2, 2);
+		Window = 1;
+	}
+
+	@Override
+	public void OnFastRetransmit(long NowNanos) {
+		// ACKs still flow, so halve the window but skip slow start.
+		SlowStartThreshold = Math.max(Window / 2, 2);
+		Window = SlowStartThreshold;
+	}
+
+	public String toString() {
+		return "Reno cwnd: " + String.format("%.1f", Window) + " ssthresh: " + String.format("%.1f", SlowStartThreshold);
+	}
+}
@@ -0,0 +1,105 @@
+package Common;
+
+import java.util.BitSet;
+
+// Out-of-order payloads of a SelectiveRepeatReceiver, kept in a fixed ring
+// indexed by SEQ mod capacity with one occupancy bit per slot. Payloads are
+// stored as handed over, without copying, or not at all if marked.
+public class ReorderBuffer {
+
+	private static final int SEQUENCE_SPACE = UdpMessage.NUMBER_MAX + 1;
+
+	private final int Capacity;
+	private final int Mask;
+	private final byte[][] Payloads;
+	private final long[] Occupied;
+	private int Count;
+
+	// Room for WindowSize packets past the next one expected.
+	public ReorderBuffer(int WindowSize) {
+		// The capacity must divide the sequence space so that SEQ mod capacity
+		// stays continuous across wraparound.
+		int Size = 64;
+		while (Size < WindowSize && Size < SEQUENCE_SPACE) {
+			Size <<= 1;
+		}
+		Capacity = Size;
+		Mask = Size - 1;
+		Payloads = new byte[Capacity][];
+		Occupied = new long[Capacity >>> 6];
+		Count = 0;
+	}
+
+	public Boolean IsEmpty() {
+		return Count == 0;
+	}
+
+	public Boolean Contains(int SequenceNumber) {
+		final int Slot = SequenceNumber & Mask;
+		return (Occupied[Slot >>> 6] & (1L << Slot)) != 0;
+	}
+
+	// Keep Payload until its turn comes. The caller gives up Payload.
+	public void Put(int SequenceNumber, byte[] Payload) {
+		final int Slot = SequenceNumber & Mask;
+		if ((Occupied[Slot >>> 6] & (1L << Slot)) == 0) {
+			Occupied[Slot >>> 6] |= 1L << Slot;
+			Payloads[Slot] = Payload;
+			Count++;
+		}
+	}
+
+	// Only record that SequenceNumber arrived, e.g. when its payload was already
+	// written to its place in a file. Take then returns null for it.
+	public void Mark(int SequenceNumber) {
+		Put(SequenceNumber, null);
+	}
+
+	// Remove and return the payload of SequenceNumber, or null if it is missing or
+	// only marked.
+	public byte[] Take(int SequenceNumber) {
+		final int Slot = SequenceNumber & Mask;
+		if ((Occupied[Slot >>> 6] & (1L << Slot)) == 0) {
+			return null;
+		}
+		Occupied[Slot >>> 6] &= ~(1L << Slot);
+		final byte[] Payload = Payloads[Slot];
+		Payloads[Slot] = null;
+		Count--;
+		return Payload;
+	}
+
+	// Number of consecutive buffered packets starting at SequenceNumber, counted
+	// a word of the bitset at a time.
+	public int CountRun(int SequenceNumber) {
+		int Run = 0;
+		int Slot = SequenceNumber & Mask;
+		while (Run < Count) {
+			final int Bit = Slot & 63;
+			// Ones from Slot up to the end of its word.
+			final long Bits = Occupied[Slot >>> 6] >>> Bit;
+			final int Ones = Long.numberOfTrailingZeros(~Bits);
+			final int Length = Math.min(Ones, 64 - Bit);
+			Run += Length;
+			if (Length < 64 - Bit) {
+				break;
+			}
+			Slot = (Slot + Length) & Mask;
+		}
+		return Math.min(Run, Count);
+	}
+
+	// Bit i of the SACK bitmap stands for BaseSequenceNumber + 1 + i.
+	public BitSet ToBitSet(int BaseSequenceNumber) {
+		BitSet Received = new BitSet();
+		for (int Word = 0; Word < Occupied.length; Word++) {
+			long Bits = Occupied[Word];
+			while (Bits != 0) {
+				final int Slot = (Word << 6) + Long.numberOfTrailingZeros(Bits);
+				Bits &= Bits - 1;
+				Received.set((Slot - BaseSequenceNumber - 1) & Mask);
+			}
+		}
+		return Received;
+	}
+}
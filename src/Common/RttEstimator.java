@@ -0,0 +1,72 @@
+package Common;
+
+public class RttEstimator {
+
+	// Gains from RFC 6298.
+	private static final double ALPHA = 1.0 / 8;
+	private static final double BETA = 1.0 / 4;
+	private static final int K = 4;
+
+	// All times are in nanoseconds. SmoothedRtt is negative until the first sample.
+	private long SmoothedRtt;
+	private long RttVariance;
+	private long Timeout;
+	private int BackoffCount;
+
+	public RttEstimator() {
+		SmoothedRtt = -1;
+		RttVariance = 0;
+		Timeout = Constants.DEFAULT_TIMEOUT * 1_000_000L;
+		BackoffCount = 0;
+	}
+
+	// Only call with samples from packets that were not retransmitted (Karn's
+	// algorithm), since the ACK of a retransmitted packet is ambiguous.
+	public void AddSample(long RttNanos) {
+		if (RttNanos < 0) {
+			return;
+		}
+		if (SmoothedRtt < 0) {
+			SmoothedRtt = RttNanos;
+			RttVariance = RttNanos / 2;
+		} else {
+			RttVariance = (long) ((1 - BETA) * RttVariance + BETA * Math.abs(SmoothedRtt - RttNanos));
+			SmoothedRtt = (long) ((1 - ALPHA) * SmoothedRtt + ALPHA * RttNanos);
+		}
+		// A valid sample collapses any backoff.
+		BackoffCount = 0;
+		Timeout = Clamp(SmoothedRtt + Math.max(1_000_000L, K * RttVariance));
+	}
+
+	// Exponential backoff after a timeout.
+	public void Backoff() {
+		BackoffCount++;
+		Timeout = Clamp(Timeout * 2);
+	}
+
+	public long GetTimeoutNanos() {
+		return Timeout;
+	}
+
+	// Timeout in milliseconds, rounded up.
+	public int GetTimeout() {
+		return (int) ((Timeout + 999_999) / 1_000_000);
+	}
+
+	public long GetSmoothedRttNanos() {
+		return SmoothedRtt;
+	}
+
+	public int GetBackoffCount() {
+		return BackoffCount;
+	}
+
+	private static long Clamp(long TimeoutNanos) {
+		return Math.min(Math.max(TimeoutNanos, Constants.MIN_TIMEOUT * 1_000_000L), Constants.MAX_TIMEOUT * 1_000_000L);
+	}
+
+	public String toString() {
+		return "SRTT: " + (SmoothedRtt < 0 ? "-" : String.format("%.3f", SmoothedRtt / 1e6) + " ms") + " RTTVAR: "
+				+ String.format("%.3f", RttVariance / 1e6) + " ms RTO: " + String.format("%.3f", Timeout / 1e6) + " ms";
+	}
+}
@@ -0,0 +1,111 @@
+package Common;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Optional;
+
+// Payload of an ACK: the next expected sequence number followed by a bitmap of
+// the packets received after it. Bit i stands for sequence number
+// CumulativeSequenceNumber + 1 + i. The number takes 2 bytes, or 4 in a 32-bit
+// sequence space.
+public class SelectiveAck {
+
+	private final SequenceSpace Space;
+	// Window of the connection: an ACK only speaks of packets within it.
+	private final int WindowSize;
+	private final int CumulativeSequenceNumber;
+	private final BitSet Received;
+
+	public SelectiveAck(SequenceSpace Space, int WindowSize, int CumulativeSequenceNumber, BitSet Received) {
+		this.Space = Space;
+		this.WindowSize = WindowSize;
+		this.CumulativeSequenceNumber = CumulativeSequenceNumber;
+		this.Received = Received;
+	}
+
+	private static int GetCumulativeSize(SequenceSpace Space) {
+		return Space.GetBits() > 16 ? 4 : 2;
+	}
+
+	public static Optional<SelectiveAck> FromBytes(SequenceSpace Space, int WindowSize, byte[] Bytes) {
+		if (Bytes.length == 0) {
+			return Optional.empty();
+		}
+		// A version 1 header strips trailing zero bytes, so missing bytes read as
+		// zero.
+		final int CumulativeSize = GetCumulativeSize(Space);
+		final byte[] Padded = Bytes.length < CumulativeSize ? Arrays.copyOf(Bytes, CumulativeSize) : Bytes;
+		int Cumulative = 0;
+		for (int i = 0; i < CumulativeSize; i++) {
+			Cumulative = (Cumulative << 8) | (Padded[i] & 0xFF);
+		}
+		final BitSet Received = BitSet.valueOf(Arrays.copyOfRange(Padded, CumulativeSize, Padded.length));
+		return Optional.of(new SelectiveAck(Space, WindowSize, Cumulative, Received));
+	}
+
+	// At most MaxLength bytes. A large window does not fit in an ACK: the bitmap
+	// then stops short, and the packets past it read as not received yet.
+	public byte[] ToBytes(int MaxLength) {
+		final int CumulativeSize = GetCumulativeSize(Space);
+		final byte[] FullBitmap = Received.toByteArray();
+		final byte[] Bitmap = FullBitmap.length > MaxLength - CumulativeSize
+				? Arrays.copyOf(FullBitmap, MaxLength - CumulativeSize)
+				: FullBitmap;
+		byte[] Bytes = new byte[CumulativeSize + Bitmap.length];
+		for (int i = 0; i < CumulativeSize; i++) {
+			Bytes[i] = (byte) (CumulativeSequenceNumber >>> (8 * (CumulativeSize - 1 - i)));
+		}
+		System.arraycopy(Bitmap, 0, Bytes, CumulativeSize, Bitmap.length);
+		return Bytes;
+	}
+
+	public int GetCumulativeSequenceNumber() {
+		return CumulativeSequenceNumber;
+	}
+
+	// Whether SequenceNumber is acknowledged, either cumulatively or by the bitmap.
+	public Boolean Covers(int SequenceNumber) {
+		final int Before = Space.Distance(SequenceNumber, CumulativeSequenceNumber);
+		if (0 < Before && Before <= WindowSize) {
+			return true;
+		}
+		final int After = Space.Distance(Space.Next(CumulativeSequenceNumber), SequenceNumber);
+		return 0 <= After && After < WindowSize && Received.get(After);
+	}
+
+	// Cumulative SEQ of a payload of Length bytes at Offset of a raw ACK, read in
+	// place. Missing bytes read as zero, as in FromBytes.
+	public static int PeekCumulativeSequenceNumber(SequenceSpace Space, ByteBuffer Raw, int Offset, int Length) {
+		final int CumulativeSize = GetCumulativeSize(Space);
+		int Cumulative = 0;
+		for (int i = 0; i < CumulativeSize; i++) {
+			Cumulative = (Cumulative << 8) | (i < Length ? Raw.get(Offset + i) & 0xFF : 0);
+		}
+		return Cumulative;
+	}
+
+	// First bit set at From or after it in the bitmap of a raw ACK, or -1 if none.
+	// Zero bytes are skipped whole, so a sparse bitmap costs a read per byte.
+	public static int PeekNextReceived(SequenceSpace Space, ByteBuffer Raw, int Offset, int Length, int From) {
+		final int Start = Offset + GetCumulativeSize(Space);
+		final int End = Offset + Length;
+		int ByteIndex = Start + (From >>> 3);
+		if (ByteIndex >= End) {
+			return -1;
+		}
+		// Same little-endian layout as BitSet.toByteArray().
+		int Bits = Raw.get(ByteIndex) & (0xFF << (From & 7)) & 0xFF;
+		while (Bits == 0) {
+			if (++ByteIndex >= End) {
+				return -1;
+			}
+			Bits = Raw.get(ByteIndex) & 0xFF;
+		}
+		return ((ByteIndex - Start) << 3) + Integer.numberOfTrailingZeros(Bits);
+	}
+
+	public String toString() {
+		return "Cumulative: " + CumulativeSequenceNumber + " SACK: " + Received.cardinality();
+	}
+}
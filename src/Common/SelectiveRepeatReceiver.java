@@ -1,8 +1,5 @@
 package Common;
 
-import java.nio.channels.DatagramChannel;
-import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.Optional;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -11,98 +8,89 @@ public class SelectiveRepeatReceiver {
 
 	private final static Logger LOGGER = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
 
-	public static Optional<HttpMessage> Run(DatagramChannel Channel, int StartSequenceNumber) {
-		// Initialize ArrayList that will hold the data.
-		// FIXME: Not very efficient.
-		ArrayList<Byte> Bytes = new ArrayList<Byte>();
+	// Receive the next message of the connection, from its next SEQ. Returns empty
+	// if the peer sends FIN, which is kept in Context, or stays idle.
+	public static Optional<HttpMessage> Run(DatagramReactor Reactor, ConnectionContext Context) {
+		return Run(Reactor, Context, new byte[0]);
+	}
+
+	// Same, but the message starts with Prefix, received before the next SEQ, e.g.
+	// in the SYNACK.
+	public static Optional<HttpMessage> Run(DatagramReactor Reactor, ConnectionContext Context, byte[] Prefix) {
+		final TransportOption Option = Context.GetOption();
 
-		// Map to hold buffered data.
-		HashMap<Integer, byte[]> BufferedPackets = new HashMap<Integer, byte[]>();
+		// The receive window, from the next SEQ of the connection.
+		final IncomingMessage Incoming = new IncomingMessage(Reactor, Context, 0, Context.GetReceiveSequenceNumber(),
+				Context.GetBodyDirectory());
+		if (Prefix.length > 0) {
+			Incoming.Append(Prefix);
+			// The whole message may already be there.
+			final Optional<HttpMessage> PotentialHttpMessage = Incoming.TryComplete();
+			if (PotentialHttpMessage.isPresent()) {
+				return PotentialHttpMessage;
+			}
+		}
 
-		// Initialize base number.
-		int BaseSequenceNumber = StartSequenceNumber;
+		// Give up on a peer that sends nothing for IdleTimeout.
+		final long IdleTimeout = Option.IdleTimeout * 1_000_000_000L;
+		long LastReceiveTime = System.nanoTime();
 
 		for (;;) {
-			// First try to receive a packet.
-			final Optional<UdpMessage> Message = DatagramChannelUtils.ReceiveOnce(Channel);
+			// First wait for a packet. Nothing can change until one arrives, except for
+			// a delayed ACK becoming due or the idle timeout.
+			final long IdleDeadline = IdleTimeout > 0 ? LastReceiveTime + IdleTimeout : DatagramReactor.NO_DEADLINE;
+			final long AckDeadline = Incoming.GetAckDeadline();
+			final long Deadline = AckDeadline != DatagramReactor.NO_DEADLINE
+					&& (IdleDeadline == DatagramReactor.NO_DEADLINE || AckDeadline - IdleDeadline < 0) ? AckDeadline
+							: IdleDeadline;
+			final Optional<UdpMessage> Message = Deadline == DatagramReactor.NO_DEADLINE
+					? DatagramChannelUtils.ReceiveBlocking(Reactor)
+					: DatagramChannelUtils.ReceiveUntil(Reactor, Deadline);
+			if (Message.isPresent()) {
+				LastReceiveTime = System.nanoTime();
+			} else if (IdleDeadline != DatagramReactor.NO_DEADLINE && System.nanoTime() - IdleDeadline >= 0) {
+				LOGGER.log(Level.INFO, "Idle for " + Option.IdleTimeout + " s. Aborting...");
+				Incoming.Discard();
+				return Optional.empty();
+			}
+			Incoming.SendDueAck(System.nanoTime());
+
+			// Second, check exceptional cases: if we got FIN, the peer is done with the
+			// connection.
+			if (Message.isPresent() && Message.get().IsFin()) {
+				LOGGER.log(Level.INFO, "Received FIN. Aborting...");
+				Context.SetPeerFin(Message.get());
+				Incoming.Discard();
+				return Optional.empty();
+			}
 
-			// Second, check exceptional cases: if we got FIN.
-//			if (Message.isPresent()) {
-//				if (Message.get().IsFin()) {
-//					LOGGER.log(Level.INFO, "Received FIN. Aborting...");
-//					break;
-//				}
-//			}
+			// The server did not get the ACK of its SYNACK. With the request in the SYN,
+			// there is no Data for it to take as the ACK, so send it again.
+			if (Message.isPresent() && Message.get().IsSynAck() && Context.GetHandshakeAck().isPresent()) {
+				LOGGER.log(Level.INFO, "Received SYNACK again. Resending ACK...");
+				DatagramChannelUtils.Send(Reactor, Constants.ROUTER_ADDRESS, Context.GetHandshakeAck().get());
+			}
 
-			// Third process Data.
+			// Third process Data. Only new in-order data can complete the message.
+			Boolean bAppended = false;
 			if (Message.isPresent() && Message.get().IsData() && Message.get().GetPayload().isPresent()) {
 				LOGGER.log(Level.INFO, "Received: " + Message.get().toString());
-				// Check if within window.
-				final int SequenceNumber = Message.get().GetSequenceNumber();
-				if (IsWithinWindow(BaseSequenceNumber, SequenceNumber)) {
-					// If so, send ACK.
-					final Optional<UdpMessage> AckMessage = UdpMessage.ConstructAckNew(0, SequenceNumber,
-							Message.get().GetAddress(), Message.get().GetPortNumber());
-					if (AckMessage.isPresent()) {
-						LOGGER.log(Level.INFO, "Sending : " + AckMessage.get().toString());
-						DatagramChannelUtils.Send(Channel, Constants.ROUTER_ADDRESS, AckMessage.get());
-						if (SequenceNumber == BaseSequenceNumber) {
-							// If SEQ is base, move window and append data.
-							ByteUtils.AppendTo(Bytes, Message.get().GetPayload().get());
-							BaseSequenceNumber = (BaseSequenceNumber + 1) % (UdpMessage.NUMBER_MAX + 1);
-							while (BufferedPackets.containsKey(BaseSequenceNumber)) {
-								ByteUtils.AppendTo(Bytes, BufferedPackets.get(BaseSequenceNumber));
-								BufferedPackets.remove(BaseSequenceNumber);
-								BaseSequenceNumber = (BaseSequenceNumber + 1) % (UdpMessage.NUMBER_MAX + 1);
-							}
-						} else {
-							// Otherwise, buffer data.
-							if (!BufferedPackets.containsKey(SequenceNumber)) {
-								// Clone works since byte is a primitive.
-								BufferedPackets.put(SequenceNumber, Message.get().GetPayload().get().clone());
-							}
-						}
-					} else {
-						LOGGER.log(Level.WARNING, "Could not generate ACK packet.");
-					}
-				} else if (IsWithinWindow(BaseSequenceNumber - Constants.WINDOW_SIZE, SequenceNumber)) {
-					// If in previous window, retransmit ACK.
-					LOGGER.log(Level.INFO,
-							"Received '" + SequenceNumber + "' which is in previous window. Resending ACK...");
-					final Optional<UdpMessage> AckMessage = UdpMessage.ConstructAckNew(0, SequenceNumber,
-							Message.get().GetAddress(), Message.get().GetPortNumber());
-					if (AckMessage.isPresent()) {
-						LOGGER.log(Level.INFO, "Sending : " + AckMessage.get().toString());
-						DatagramChannelUtils.Send(Channel, Constants.ROUTER_ADDRESS, AckMessage.get());
-					} else {
-						LOGGER.log(Level.WARNING, "Could not generate ACK packet.");
-					}
-				} else {
-					// Otherwise, ignore.
-					LOGGER.log(Level.INFO, "Received '" + SequenceNumber
-							+ "' which is neither in current window not in previous window. Ignoring...");
-				}
+				bAppended = Incoming.OnData(Message.get());
+			}
+
+			if (Incoming.HasFailed()) {
+				LOGGER.log(Level.WARNING, "Could not write the body. Aborting...");
+				return Optional.empty();
 			}
 
 			// Fourth check if message is completed.
-			// If there is no buffered packets, it might be done.
-			// Check if it is a well formed HTML message.
-			if (BufferedPackets.isEmpty()) {
-				Optional<HttpMessage> PotentialHttpMessage = HttpMessage
-						.TryToParse(ByteUtils.ToPrimitives(Bytes.toArray()));
+			if (bAppended) {
+				final Optional<HttpMessage> PotentialHttpMessage = Incoming.TryComplete();
 				if (PotentialHttpMessage.isPresent()) {
+					Context.SetReceiveSequenceNumber(Incoming.GetBaseSequenceNumber());
 					return PotentialHttpMessage;
 				}
 			}
 		}
 	}
-
-	private static Boolean IsWithinWindow(int BaseSequenceNumber, int SequenceNumber) {
-		BaseSequenceNumber = Math.floorMod(BaseSequenceNumber, UdpMessage.NUMBER_MAX + 1);
-		if (BaseSequenceNumber <= SequenceNumber) {
-			return SequenceNumber < BaseSequenceNumber + Constants.WINDOW_SIZE;
-		} else {
-			return UdpMessage.NUMBER_MAX + 1 + SequenceNumber < BaseSequenceNumber + Constants.WINDOW_SIZE;
-		}
-	}
 }
@@ -1,9 +1,7 @@
 package Common;
 
 import java.net.InetAddress;
-import java.nio.channels.DatagramChannel;
-import java.util.Arrays;
-import java.util.HashMap;
+import java.nio.ByteBuffer;
 import java.util.Optional;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -12,149 +10,125 @@ public class SelectiveRepeatSender {
 
 	private final static Logger LOGGER = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
 
-	public static void Run(DatagramChannel Channel, InetAddress Address, int PortNumber, int StartSequenceNumber,
-			HttpMessage HttpMessage, Boolean bClient) {
-		// Transform message in bytes.
-		// FIXME: This assumes that the message can always be transformed as bytes.
-		final byte[] Bytes = HttpMessage.GetAsBytes();
-		final int MessageLength = Bytes.length;
-		final int PacketCount = (int) Math.ceil(MessageLength * 1.0 / UdpMessage.PAYLOAD_MAX_SIZE);
-		LOGGER.log(Level.INFO, "Started RDT. MessageLength : " + MessageLength + " PacketCount: " + PacketCount + ".");
-
-		// Keep track of when packets were sent.
-		// Assume Time = -1 implies it was ACKed.
-		HashMap<Integer, Long> StartTimes = new HashMap<Integer, Long>();
+	// Send HttpMessage from the next SEQ of the connection, and move it past the
+	// message.
+	public static void Run(DatagramReactor Reactor, InetAddress Address, int PortNumber, HttpMessage HttpMessage,
+			ConnectionContext Context) {
+		Run(Reactor, Address, PortNumber, HttpMessage, 0, Context);
+	}
 
-		// Initialize base numbers.
-		int BasePacketNumber = 0;
-		int BaseSequenceNumber = StartSequenceNumber;
+	// Same, but the peer already has the first Offset bytes of the message, e.g.
+	// from the SYNACK. There must be bytes left.
+	public static void Run(DatagramReactor Reactor, InetAddress Address, int PortNumber, HttpMessage HttpMessage,
+			int Offset, ConnectionContext Context) {
+		final CongestionController Controller = Context.GetController();
+		final RttEstimator Estimator = Context.GetEstimator();
+
+		// The message is read as its packets are sent, e.g. a file straight from disk.
+		final Optional<MessageSource> Source = HttpMessage.GetSource();
+		if (Source.isEmpty()) {
+			LOGGER.log(Level.WARNING, "Could not read message.");
+			return;
+		}
+		Source.get().Skip(Offset);
+		final long MessageLength = Source.get().GetLength() - Offset;
+		final int Version = Context.GetHeaderVersion();
+		final SequenceSpace Space = Context.GetSequenceSpace();
+
+		// Spreads new packets over time when enabled.
+		final Pacer Pacer = new Pacer(Context, Context.GetDatagramSize(), Reactor::Wakeup);
+		// The send window, from the next SEQ of the connection. Steady state does not
+		// allocate: packets are encoded once into the window and ACKs are read in
+		// place from a single receive buffer.
+		final int StartSequenceNumber = Context.GetSendSequenceNumber();
+		final OutgoingMessage Outgoing = new OutgoingMessage(Reactor, Context, Pacer, Address.getAddress(),
+				PortNumber, 0, Source.get(), MessageLength, StartSequenceNumber);
+		final int PacketCount = Outgoing.GetPacketCount();
+		Context.SetSendSequenceNumber(Space.Add(StartSequenceNumber, PacketCount));
+		LOGGER.log(Level.INFO, "Started RDT. MessageLength : " + MessageLength + " PacketCount: " + PacketCount + ".");
+		final ByteBuffer Raw = Reactor.GetBufferPool().Acquire();
 
 		for (;;) {
-			// First try to receive a packet.
-			Optional<UdpMessage> Message = DatagramChannelUtils.ReceiveOnce(Channel);
+			// First try to receive a packet. If there is something to send, only poll.
+			// Otherwise, park until a packet arrives or a timer expires. The pacer
+			// holding back a packet arms a timer of its own.
+			final Boolean bWindowOpen = Outgoing.GetInFlightCount() < Controller.GetWindow()
+					&& Outgoing.HasNewPacket();
+			final long PaceDelay = bWindowOpen ? Pacer.GetDelayNanos(System.nanoTime()) : 0;
+			final Boolean bCanSend = bWindowOpen && PaceDelay == 0;
+			if (PaceDelay > 0) {
+				Pacer.Arm(System.nanoTime(), PaceDelay);
+			}
+			final Boolean bReceived = bCanSend || Outgoing.HasExpired()
+					? DatagramChannelUtils.ReceiveRawOnce(Reactor, Raw)
+					: DatagramChannelUtils.ReceiveRawUntilWakeup(Reactor, Raw);
+			final EUdpPacketType PacketType = bReceived ? UdpMessage.PeekPacketType(Raw) : null;
 
 			// Second, check exceptional cases: if we got Data or FIN.
-			if (Message.isPresent()) {
-				if (Message.get().IsData()) {
-					if (bClient) {
-						// If client, it means server started to send, so abort.
-						LOGGER.log(Level.INFO, "Received Data. Assume it is from next message. Aborting...");
-						break;
-					} else {
-						// If server, it means its leftover from previous message. Send ACK.
-						LOGGER.log(Level.INFO, "Received Data. Assume it came from previous message. Sending Ack...");
-						final int SequenceNumber = Message.get().GetSequenceNumber();
-						Optional<UdpMessage> AckMessage = UdpMessage.ConstructAckNew(0, SequenceNumber,
-								Message.get().GetAddress(), Message.get().GetPortNumber());
+			if (PacketType == EUdpPacketType.Data) {
+				if (Space.Distance(Context.GetReceiveSequenceNumber(), UdpMessage.PeekSequenceNumber(Raw)) >= 0) {
+					// The peer only sends its next message once it has ours, so abort.
+					LOGGER.log(Level.INFO, "Received Data. Assume it is from next message. Aborting...");
+					break;
+				} else {
+					// Otherwise, it is leftover from the previous message. Send ACK.
+					LOGGER.log(Level.INFO, "Received Data. Assume it came from previous message. Sending Ack...");
+					final Optional<UdpMessage> Message = UdpMessage.ConstructFromBuffer(Raw);
+					if (Message.isPresent()) {
+						Optional<UdpMessage> AckMessage = UdpMessage.ConstructAckNew(0,
+								Message.get().GetSequenceNumber(), Message.get().GetAddress(),
+								Message.get().GetPortNumber());
 						if (AckMessage.isPresent()) {
-							DatagramChannelUtils.Send(Channel, Constants.ROUTER_ADDRESS, AckMessage.get());
+							AckMessage.get().SetVersion(Version);
+							DatagramChannelUtils.Send(Reactor, Constants.ROUTER_ADDRESS, AckMessage.get());
 						}
-						continue;
 					}
-				} else if (Message.get().IsFin()) {
-					LOGGER.log(Level.INFO, "Received FIN. Aborting...");
-					break;
+					continue;
 				}
+			} else if (PacketType == EUdpPacketType.Fin) {
+				// The peer has the whole message and is closing: keep its FIN for the
+				// teardown.
+				LOGGER.log(Level.INFO, "Received FIN. Aborting...");
+				UdpMessage.ConstructFromBuffer(Raw).ifPresent(Context::SetPeerFin);
+				break;
+			} else if (PacketType == EUdpPacketType.SynAck && Context.GetHandshakeAck().isPresent()) {
+				// The server did not get the ACK of its SYNACK: without it, a server that
+				// answered with a cookie has no connection for the request. Send it again.
+				LOGGER.log(Level.INFO, "Received SYNACK again. Resending ACK...");
+				DatagramChannelUtils.Send(Reactor, Constants.ROUTER_ADDRESS, Context.GetHandshakeAck().get());
+				continue;
 			}
 
 			// Third, process ACK.
-			if (Message.isPresent() && Message.get().IsAck()) {
-				LOGGER.log(Level.INFO, "Received : " + Message.get().toString());
-				final int AcknowledgeNumber = Message.get().GetAcknowledgmentNumber();
-				if (StartTimes.containsKey(AcknowledgeNumber)) {
-					// If SEQ is base, more window.
-					if (AcknowledgeNumber == BaseSequenceNumber) {
-						StartTimes.remove(AcknowledgeNumber);
-						BasePacketNumber++;
-						BaseSequenceNumber = (BaseSequenceNumber + 1) % (UdpMessage.NUMBER_MAX + 1);
-						// Increment window until a sent packet is found.
-						while (StartTimes.containsKey(BaseSequenceNumber) && StartTimes.get(BaseSequenceNumber) < 0) {
-							StartTimes.remove(BaseSequenceNumber);
-							BasePacketNumber++;
-							BaseSequenceNumber = (BaseSequenceNumber + 1) % (UdpMessage.NUMBER_MAX + 1);
-						}
-					} else {
-						// Otherwise, leave timer there, but set to received.
-						StartTimes.put(AcknowledgeNumber, (long) -1);
-					}
-				} else {
-					LOGGER.log(Level.WARNING, "Timer for packer number " + AcknowledgeNumber + " was not started.");
+			if (PacketType == EUdpPacketType.Ack) {
+				if (LOGGER.isLoggable(Level.FINE)) {
+					LOGGER.log(Level.FINE, "Received : " + UdpMessage.ConstructFromBuffer(Raw).get().toString());
 				}
+				Outgoing.OnAck(Raw);
 			}
 
-			// Fourth, check timer and retransmit.
-			for (int SequenceNumber : StartTimes.keySet()) {
-				// Check if timed out.
-				if (StartTimes.get(SequenceNumber) > 0
-						&& System.currentTimeMillis() > StartTimes.get(SequenceNumber) + Constants.DEFAULT_TIMEOUT) {
-					// Restart timer.
-					StartTimes.put(SequenceNumber, System.currentTimeMillis());
-					// Retransmit data.
-					final int PacketNumber = GetPacketNumber(StartSequenceNumber, BasePacketNumber, BaseSequenceNumber,
-							SequenceNumber);
-					final Optional<UdpMessage> DataMessage = GetPacket(Address, PortNumber, Bytes, StartSequenceNumber,
-							PacketNumber);
-					if (DataMessage.isPresent()) {
-						LOGGER.log(Level.INFO, "Sending : " + DataMessage.get().toString());
-						DatagramChannelUtils.Send(Channel, Constants.ROUTER_ADDRESS, DataMessage.get());
-					} else {
-						LOGGER.log(Level.WARNING, "Could not generate Data packet.");
-					}
-				}
-			}
+			// Fourth, resend packets that later packets overtook, without waiting for
+			// their timer, then packets whose timer expired.
+			Outgoing.Retransmit();
 
 			// Fifth, check if we can send another packet.
-			if (StartTimes.keySet().size() < Constants.WINDOW_SIZE) {
-				final int SequenceNumber = BaseSequenceNumber + StartTimes.keySet().size();
-				final int PacketNumber = GetPacketNumber(StartSequenceNumber, BasePacketNumber, BaseSequenceNumber,
-						SequenceNumber);
-				// Check if we have more packets to send.
-				if (PacketNumber < PacketCount) {
-					// Start timer.
-					StartTimes.put(SequenceNumber % (UdpMessage.NUMBER_MAX + 1), System.currentTimeMillis());
-					// Send data,
-					final Optional<UdpMessage> DataMessage = GetPacket(Address, PortNumber, Bytes, StartSequenceNumber,
-							PacketNumber);
-					if (DataMessage.isPresent()) {
-						LOGGER.log(Level.INFO, "Sending : " + DataMessage.get().toString());
-						DatagramChannelUtils.Send(Channel, Constants.ROUTER_ADDRESS, DataMessage.get());
-					} else {
-						LOGGER.log(Level.WARNING, "Could not generate package.");
-					}
-				}
+			if (Outgoing.GetInFlightCount() < Controller.GetWindow() && Outgoing.HasNewPacket()
+					&& Pacer.GetDelayNanos(System.nanoTime()) == 0 && !Outgoing.SendNext()) {
+				LOGGER.log(Level.WARNING, "Could not read message. Aborting...");
+				break;
 			}
 
 			// Sixth, check if done.
-			if (BasePacketNumber == PacketCount) {
+			if (Outgoing.IsDone()) {
+				LOGGER.log(Level.INFO, "Done sending. " + Estimator.toString() + " " + Controller.toString() + " "
+						+ Pacer.toString());
 				break;
 			}
 		}
-	}
-
-	private static Optional<UdpMessage> GetPacket(InetAddress Address, int PortNumber, byte[] Bytes,
-			int StartSequenceNumber, int PacketNumber) {
-
-		final int SequenceNumber = GetSequenceNumber(StartSequenceNumber, PacketNumber);
-		final int StartByteIndex = PacketNumber * UdpMessage.PAYLOAD_MAX_SIZE;
-		final int NextByteIndex = StartByteIndex + UdpMessage.PAYLOAD_MAX_SIZE;
-		final int EndByteIndex = (NextByteIndex <= Bytes.length) ? NextByteIndex : Bytes.length;
-
-		return UdpMessage.New(EUdpPacketType.Data, SequenceNumber, 0, Address, PortNumber,
-				Arrays.copyOfRange(Bytes, StartByteIndex, EndByteIndex));
-	}
-
-	public static int GetSequenceNumber(int StartSequenceNumber, int PacketNumber) {
-		return (PacketNumber + StartSequenceNumber) % (UdpMessage.NUMBER_MAX + 1);
-	}
-
-	public static int GetPacketNumber(int StartSequenceNumber, int BasePacketNumber, int BaseSequenceNumber,
-			int SequenceNumber) {
-		// Integer division, round down.
-		int Factor = (BasePacketNumber + StartSequenceNumber) / (UdpMessage.NUMBER_MAX + 1);
-		if (BaseSequenceNumber > SequenceNumber) {
-			Factor++;
-		}
-		return SequenceNumber - StartSequenceNumber + Factor * (UdpMessage.NUMBER_MAX + 1);
 
+		// Stop timers left when aborting.
+		Outgoing.Close();
+		Pacer.Close();
+		Reactor.GetBufferPool().Release(Raw);
 	}
 }
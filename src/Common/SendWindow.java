@@ -0,0 +1,317 @@
+package Common;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// In-flight packets of a SelectiveRepeatSender, kept in a fixed ring indexed by
+// SEQ mod capacity. All state is in arrays allocated once and datagrams come
+// from a BufferPool, so sending, ACKing and sliding the window do not allocate.
+public class SendWindow {
+
+	private final SequenceSpace Space;
+	// Most packets in flight, within the capacity of the ring.
+	private final int WindowSize;
+	private final int Capacity;
+	private final int Mask;
+	// Per slot: send time (System.nanoTime()), encoded datagram and timer. A
+	// datagram buffer leaves the slot with its packet and is kept aside for the
+	// next packet sent, so the window holds as many buffers as it had packets in
+	// flight at most, and only goes to the pool to grow. All go back on Close.
+	private final BufferPool Pool;
+	private final long[] SendTimes;
+	private final ByteBuffer[] Datagrams;
+	private final ByteBuffer[] SpareDatagrams;
+	private int SpareCount;
+	private final TimerWheel.Timer[] Timers;
+	// Deadline of the last arm of each timer. The timer thread may fire a timer
+	// just as the sender re-arms it, e.g. for the next packet of the slot: a fire
+	// seen before the deadline is then that of the earlier arm.
+	private final long[] Deadlines;
+	// One bit per slot.
+	private final long[] Acked;
+	private final long[] Retransmitted;
+	private final long[] FastRetransmitted;
+	// Set by the timer thread, drained by the sender.
+	private final AtomicLongArray Expired;
+
+	private int BasePacketNumber;
+	private int BaseSequenceNumber;
+	private int InFlightCount;
+	// Fast retransmit, by packet number: the highest packet ACKed so far, the
+	// packet below which every hole is taken as lost, and how far holes were
+	// already reported.
+	private int HighestAckedPacketNumber;
+	private int LossEdge;
+	private int LossCursor;
+
+	// Wakeup is run on the timer thread when a retransmission timer expires.
+	public SendWindow(SequenceSpace Space, int StartSequenceNumber, int WindowSize, BufferPool Pool,
+			Runnable Wakeup) {
+		this.Space = Space;
+		this.Pool = Pool;
+		// The capacity must divide the sequence space so that SEQ mod capacity
+		// stays continuous across wraparound.
+		int Size = 1;
+		while (Size < WindowSize && Size <= Space.GetMask() >>> 1) {
+			Size <<= 1;
+		}
+		this.WindowSize = Math.min(WindowSize, Size);
+		Capacity = Size;
+		Mask = Size - 1;
+		SendTimes = new long[Capacity];
+		Datagrams = new ByteBuffer[Capacity];
+		SpareDatagrams = new ByteBuffer[Capacity];
+		SpareCount = 0;
+		Timers = new TimerWheel.Timer[Capacity];
+		Deadlines = new long[Capacity];
+		final int WordCount = (Capacity + 63) >>> 6;
+		Acked = new long[WordCount];
+		Retransmitted = new long[WordCount];
+		FastRetransmitted = new long[WordCount];
+		Expired = new AtomicLongArray(WordCount);
+		for (int i = 0; i < Capacity; i++) {
+			final int Slot = i;
+			Timers[i] = new TimerWheel.Timer(() -> {
+				SetExpired(Slot);
+				Wakeup.run();
+			});
+		}
+		BasePacketNumber = 0;
+		BaseSequenceNumber = StartSequenceNumber;
+		InFlightCount = 0;
+		HighestAckedPacketNumber = -1;
+		LossEdge = 0;
+		LossCursor = 0;
+	}
+
+	// Whether no more packets may be sent until some leave the window.
+	public Boolean IsFull() {
+		return InFlightCount >= WindowSize;
+	}
+
+	public int GetInFlightCount() {
+		return InFlightCount;
+	}
+
+	public int GetBasePacketNumber() {
+		return BasePacketNumber;
+	}
+
+	public int GetBaseSequenceNumber() {
+		return BaseSequenceNumber;
+	}
+
+	// Packet number and SEQ of the next packet to send.
+	public int GetNextPacketNumber() {
+		return BasePacketNumber + InFlightCount;
+	}
+
+	public int GetNextSequenceNumber() {
+		return Space.Add(BaseSequenceNumber, InFlightCount);
+	}
+
+	// Packet number of a SEQ in the window.
+	public int GetPacketNumber(int SequenceNumber) {
+		return BasePacketNumber + Space.Distance(BaseSequenceNumber, SequenceNumber);
+	}
+
+	// Whether SequenceNumber was sent and is not ACKed yet.
+	public Boolean IsInFlight(int SequenceNumber) {
+		final int Offset = Space.Distance(BaseSequenceNumber, SequenceNumber);
+		return Offset >= 0 && Offset < InFlightCount && !GetBit(Acked, SequenceNumber & Mask);
+	}
+
+	// Cleared buffer of the next slot, to encode the next packet into.
+	public ByteBuffer GetNextDatagram() {
+		final int Slot = (BaseSequenceNumber + InFlightCount) & Mask;
+		if (Datagrams[Slot] == null) {
+			Datagrams[Slot] = SpareCount > 0 ? SpareDatagrams[--SpareCount] : Pool.Acquire();
+		}
+		return Datagrams[Slot].clear();
+	}
+
+	// Append the packet encoded in GetNextDatagram() at the window end. Returns
+	// its SEQ, for the caller to arm its timer.
+	public int Add(long NowNanos) {
+		final int Slot = (BaseSequenceNumber + InFlightCount) & Mask;
+		SendTimes[Slot] = NowNanos;
+		ClearBit(Acked, Slot);
+		ClearBit(Retransmitted, Slot);
+		ClearBit(FastRetransmitted, Slot);
+		ClearExpired(Slot);
+		InFlightCount++;
+		return Space.Add(BaseSequenceNumber, InFlightCount - 1);
+	}
+
+	// Encoded datagram of an in-flight packet, rewound to be sent again.
+	public ByteBuffer GetDatagram(int SequenceNumber) {
+		return Datagrams[SequenceNumber & Mask].rewind();
+	}
+
+	public long GetSendTime(int SequenceNumber) {
+		return SendTimes[SequenceNumber & Mask];
+	}
+
+	public TimerWheel.Timer GetTimer(int SequenceNumber) {
+		return Timers[SequenceNumber & Mask];
+	}
+
+	// (Re)arm the retransmission timer of an in-flight packet.
+	public void Arm(TimerWheel Wheel, int SequenceNumber, long DeadlineNanos) {
+		Deadlines[SequenceNumber & Mask] = DeadlineNanos;
+		Wheel.Schedule(Timers[SequenceNumber & Mask], DeadlineNanos);
+	}
+
+	public Boolean IsRetransmitted(int SequenceNumber) {
+		return GetBit(Retransmitted, SequenceNumber & Mask);
+	}
+
+	public Boolean IsFastRetransmitted(int SequenceNumber) {
+		return GetBit(FastRetransmitted, SequenceNumber & Mask);
+	}
+
+	// Record a retransmission on timeout. Its ACK can no longer give an RTT
+	// sample, nor count as a timeout avoided.
+	public void OnRetransmit(int SequenceNumber, long NowNanos) {
+		final int Slot = SequenceNumber & Mask;
+		SendTimes[Slot] = NowNanos;
+		SetBit(Retransmitted, Slot);
+		ClearBit(FastRetransmitted, Slot);
+	}
+
+	public void OnFastRetransmit(int SequenceNumber, long NowNanos) {
+		OnRetransmit(SequenceNumber, NowNanos);
+		SetBit(FastRetransmitted, SequenceNumber & Mask);
+	}
+
+	public void OnAcked(int SequenceNumber) {
+		SetBit(Acked, SequenceNumber & Mask);
+		HighestAckedPacketNumber = Math.max(HighestAckedPacketNumber, GetPacketNumber(SequenceNumber));
+	}
+
+	// Move the loss edge up to the Threshold-th highest ACKed packet: every packet
+	// below it was overtaken by at least Threshold others. Only the ACKed packets
+	// above the current edge are walked.
+	public void DetectLosses(int Threshold) {
+		int Count = 0;
+		for (int PacketNumber = HighestAckedPacketNumber; PacketNumber > LossEdge
+				&& PacketNumber >= BasePacketNumber; PacketNumber--) {
+			if (GetBit(Acked, GetSlot(PacketNumber)) && ++Count == Threshold) {
+				LossEdge = PacketNumber;
+				return;
+			}
+		}
+	}
+
+	// SEQ of a packet below the loss edge that is still in flight and was never
+	// resent, or -1. Each packet is reported once.
+	public int PollLost() {
+		LossCursor = Math.max(LossCursor, BasePacketNumber);
+		while (LossCursor < LossEdge) {
+			final int Slot = GetSlot(LossCursor++);
+			if (!GetBit(Acked, Slot) && !GetBit(Retransmitted, Slot)) {
+				return Space.Add(BaseSequenceNumber, LossCursor - 1 - BasePacketNumber);
+			}
+		}
+		return -1;
+	}
+
+	// Move the base past ACKed packets. Returns how many packets left the window.
+	public int Slide() {
+		int Count = 0;
+		while (InFlightCount > 0 && GetBit(Acked, BaseSequenceNumber & Mask)) {
+			final int Slot = BaseSequenceNumber & Mask;
+			ClearBit(Acked, Slot);
+			// A heap buffer, from an exhausted pool, is not worth keeping.
+			if (Datagrams[Slot] != null && Datagrams[Slot].isDirect()) {
+				SpareDatagrams[SpareCount++] = Datagrams[Slot];
+			}
+			Datagrams[Slot] = null;
+			BasePacketNumber++;
+			BaseSequenceNumber = Space.Next(BaseSequenceNumber);
+			InFlightCount--;
+			Count++;
+		}
+		return Count;
+	}
+
+	// SEQ of a packet whose timer expired and that is still in flight, or -1.
+	public int PollExpired() {
+		for (int Word = 0; Word < Expired.length(); Word++) {
+			long Bits;
+			while ((Bits = Expired.get(Word)) != 0) {
+				final long Lowest = Bits & -Bits;
+				if (!Expired.compareAndSet(Word, Bits, Bits & ~Lowest)) {
+					continue;
+				}
+				final int Slot = (Word << 6) + Long.numberOfTrailingZeros(Lowest);
+				final int SequenceNumber = Space.Add(BaseSequenceNumber, (Slot - BaseSequenceNumber) & Mask);
+				// Skip timers that fired while their packet was being ACKed, and stale
+				// fires: the wheel never fires a timer before its deadline.
+				if (IsInFlight(SequenceNumber) && System.nanoTime() - Deadlines[Slot] >= 0) {
+					return SequenceNumber;
+				}
+			}
+		}
+		return -1;
+	}
+
+	public Boolean HasExpired() {
+		for (int Word = 0; Word < Expired.length(); Word++) {
+			if (Expired.get(Word) != 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// Stop every timer and return the buffers, those of packets left in flight
+	// included, e.g. when aborting.
+	public void Close(TimerWheel Wheel) {
+		for (TimerWheel.Timer Timer : Timers) {
+			Wheel.Cancel(Timer);
+		}
+		for (int Slot = 0; Slot < Capacity; Slot++) {
+			Pool.Release(Datagrams[Slot]);
+			Datagrams[Slot] = null;
+		}
+		while (SpareCount > 0) {
+			Pool.Release(SpareDatagrams[--SpareCount]);
+			SpareDatagrams[SpareCount] = null;
+		}
+	}
+
+	private int GetSlot(int PacketNumber) {
+		return (BaseSequenceNumber + PacketNumber - BasePacketNumber) & Mask;
+	}
+
+	private void SetExpired(int Slot) {
+		final int Word = Slot >>> 6;
+		final long Bit = 1L << Slot;
+		long Bits;
+		do {
+			Bits = Expired.get(Word);
+		} while (!Expired.compareAndSet(Word, Bits, Bits | Bit));
+	}
+
+	private void ClearExpired(int Slot) {
+		final int Word = Slot >>> 6;
+		final long Bit = 1L << Slot;
+		long Bits;
+		do {
+			Bits = Expired.get(Word);
+		} while ((Bits & Bit) != 0 && !Expired.compareAndSet(Word, Bits, Bits & ~Bit));
+	}
+
+	private static Boolean GetBit(long[] Bits, int Index) {
+		return (Bits[Index >>> 6] & (1L << Index)) != 0;
+	}
+
+	private static void SetBit(long[] Bits, int Index) {
+		Bits[Index >>> 6] |= 1L << Index;
+	}
+
+	private static void ClearBit(long[] Bits, int Index) {
+		Bits[Index >>> 6] &= ~(1L << Index);
+	}
+}
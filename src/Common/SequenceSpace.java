@@ -0,0 +1,47 @@
+package Common;
+
+// Arithmetic on the sequence numbers of a connection, which wrap around at
+// 2^Bits. Headers up to version 2 carry 16-bit numbers. Version 3 carries 32
+// bits, of which 31 are used, so that sequence numbers stay non-negative ints.
+public class SequenceSpace {
+
+	public static final SequenceSpace BITS_16 = new SequenceSpace(16);
+	public static final SequenceSpace BITS_31 = new SequenceSpace(31);
+
+	private final int Bits;
+	private final int Mask;
+	// Shifting a difference left then right by Shift sign-extends it from Bits.
+	private final int Shift;
+
+	private SequenceSpace(int Bits) {
+		this.Bits = Bits;
+		this.Mask = (int) ((1L << Bits) - 1);
+		this.Shift = 32 - Bits;
+	}
+
+	public static SequenceSpace ForVersion(int Version) {
+		return Version >= UdpMessage.VERSION_3 ? BITS_31 : BITS_16;
+	}
+
+	public int GetBits() {
+		return Bits;
+	}
+
+	public int GetMask() {
+		return Mask;
+	}
+
+	public int Add(int SequenceNumber, int Count) {
+		return (SequenceNumber + Count) & Mask;
+	}
+
+	public int Next(int SequenceNumber) {
+		return (SequenceNumber + 1) & Mask;
+	}
+
+	// Signed distance from From to To, e.g. -1 if To is just before From. Only
+	// meaningful for numbers less than half the space apart.
+	public int Distance(int From, int To) {
+		return ((To - From) << Shift) >> Shift;
+	}
+}
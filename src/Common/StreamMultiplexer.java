@@ -0,0 +1,384 @@
+package Common;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Optional;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// Several messages at once on one connection, each on its own stream. A stream
+// carries a request one way and its response the other. Every stream has its
+// own SEQ, send window and reassembly, an OutgoingMessage and an
+// IncomingMessage, so that a large message does not hold back small ones.
+// Streams share the congestion window, the RTT estimate and the pacer of the
+// connection. Needs a version 4 header.
+public class StreamMultiplexer {
+
+	private final static Logger LOGGER = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+
+	// A message received on a stream.
+	public static class StreamMessage {
+		private final int StreamId;
+		private final HttpMessage Message;
+
+		private StreamMessage(int StreamId, HttpMessage Message) {
+			this.StreamId = StreamId;
+			this.Message = Message;
+		}
+
+		public int GetStreamId() {
+			return StreamId;
+		}
+
+		public HttpMessage GetMessage() {
+			return Message;
+		}
+	}
+
+	private final DatagramReactor Reactor;
+	private final int PortNumber;
+	private final byte[] AddressBytes;
+	private final ConnectionContext Context;
+	private final RttEstimator Estimator;
+	private final CongestionController Controller;
+	private final TimerWheel Wheel;
+	private final int PayloadSize;
+	private final Pacer Pacer;
+	// ACKs are read in place from a single receive buffer.
+	private final ByteBuffer Raw;
+
+	// Sent round robin, one packet per stream at a time, until all of it is ACKed.
+	private final ArrayList<OutgoingMessage> Outgoing;
+	private int NextOutgoingIndex;
+	private final HashMap<Integer, IncomingMessage> Incoming;
+	// Streams complete for longer than a retransmission timeout, forgotten but for
+	// their ID: a late duplicate on one of them is only ACKed again. A stream ID
+	// comes back into use once IDs half the ID space ahead are retired, as the
+	// peer allocates them in order.
+	private final BitSet Retired;
+	// Completed while waiting for something else.
+	private final ArrayDeque<StreamMessage> Completed;
+	private long LastReceiveTime;
+
+	public StreamMultiplexer(DatagramReactor Reactor, InetAddress Address, int PortNumber,
+			ConnectionContext Context) {
+		this.Reactor = Reactor;
+		this.PortNumber = PortNumber;
+		this.AddressBytes = Address.getAddress();
+		this.Context = Context;
+		this.Estimator = Context.GetEstimator();
+		this.Controller = Context.GetController();
+		this.Wheel = TimerWheel.GetShared();
+		this.PayloadSize = UdpMessage.GetPayloadMaxSize(Context.GetHeaderVersion(), Context.GetDatagramSize());
+		this.Pacer = new Pacer(Context, Context.GetDatagramSize(), Reactor::Wakeup);
+		this.Raw = Reactor.GetBufferPool().Acquire();
+		this.Outgoing = new ArrayList<OutgoingMessage>();
+		this.NextOutgoingIndex = 0;
+		this.Incoming = new HashMap<Integer, IncomingMessage>();
+		this.Retired = new BitSet();
+		this.Completed = new ArrayDeque<StreamMessage>();
+		this.LastReceiveTime = System.nanoTime();
+	}
+
+	// Queue Message on StreamId. It goes out while waiting in Receive or Flush.
+	public void Send(int StreamId, HttpMessage Message) {
+		Send(StreamId, Message, 0);
+	}
+
+	// Same, but the peer already has the first Offset bytes of Message.
+	public void Send(int StreamId, HttpMessage Message, long Offset) {
+		final Optional<MessageSource> Source = Message.GetSource();
+		if (Source.isEmpty()) {
+			LOGGER.log(Level.WARNING, "Stream " + StreamId + ": could not read message.");
+			return;
+		}
+		Source.get().Skip(Offset);
+		final long Length = Source.get().GetLength() - Offset;
+		final int PacketCount = (int) Math.ceil(Length * 1.0 / PayloadSize);
+		if (PacketCount == 0) {
+			Source.get().close();
+			return;
+		}
+		// Stream 0 continues from the handshake SEQ, the others start at 0.
+		final int StartSequenceNumber = StreamId == 0 ? Context.GetSendSequenceNumber() : 0;
+		Outgoing.add(new OutgoingMessage(Reactor, Context, Pacer, AddressBytes, PortNumber, StreamId, Source.get(),
+				Length, StartSequenceNumber));
+		LOGGER.log(Level.INFO,
+				"Stream " + StreamId + ": MessageLength : " + Length + " PacketCount: " + PacketCount + ".");
+	}
+
+	// Expect a message on StreamId that starts with Prefix, received before the
+	// first SEQ of the stream, e.g. in the SYNACK.
+	public void Expect(int StreamId, byte[] Prefix) {
+		Expect(StreamId, Prefix, Context.GetBodyDirectory());
+	}
+
+	// Same, but the body goes to BodyDirectory instead of that of the connection.
+	public void Expect(int StreamId, byte[] Prefix, Optional<Path> BodyDirectory) {
+		Retired.clear(StreamId);
+		final IncomingMessage Stream = GetIncoming(StreamId, BodyDirectory);
+		Stream.Append(Prefix);
+		Complete(StreamId, Stream);
+	}
+
+	// Wait for the next complete message on any stream, sending in the meantime.
+	// Returns empty if the peer sends FIN, which is kept in Context, or stays
+	// idle.
+	public Optional<StreamMessage> Receive() {
+		if (Run(() -> !Completed.isEmpty())) {
+			return Optional.of(Completed.poll());
+		}
+		return Optional.empty();
+	}
+
+	// Wait until everything sent is ACKed. Returns false if the peer sends FIN or
+	// stays idle first.
+	public Boolean Flush() {
+		return Run(() -> Outgoing.isEmpty());
+	}
+
+	// Stop the timers and return the buffers, e.g. when aborting.
+	public void Close() {
+		for (OutgoingMessage Stream : Outgoing) {
+			Stream.Close();
+		}
+		Outgoing.clear();
+		// Delete bodies written to disk of messages that will never complete.
+		for (IncomingMessage Stream : Incoming.values()) {
+			Stream.Discard();
+		}
+		Pacer.Close();
+		Reactor.GetBufferPool().Release(Raw);
+	}
+
+	private Boolean Run(Supplier<Boolean> Done) {
+		try {
+			return RunUntil(Done);
+		} finally {
+			Wheel.Cancel(Reactor.GetDeadlineTimer());
+		}
+	}
+
+	private Boolean RunUntil(Supplier<Boolean> Done) {
+		final long IdleTimeout = Context.GetOption().IdleTimeout * 1_000_000_000L;
+		LastReceiveTime = System.nanoTime();
+		for (;;) {
+			if (Done.get()) {
+				return true;
+			}
+
+			// First try to receive a packet. If there is something to send, only poll.
+			// Otherwise, park until a packet arrives or a timer expires: retransmission,
+			// pacer, delayed ACK or idle timeout.
+			final Boolean bWindowOpen = GetInFlightCount() < Controller.GetWindow() && HasNewPacket();
+			final long PaceDelay = bWindowOpen ? Pacer.GetDelayNanos(System.nanoTime()) : 0;
+			final Boolean bCanSend = bWindowOpen && PaceDelay == 0;
+			if (PaceDelay > 0) {
+				Pacer.Arm(System.nanoTime(), PaceDelay);
+			}
+			final long IdleDeadline = IdleTimeout > 0 ? LastReceiveTime + IdleTimeout : DatagramReactor.NO_DEADLINE;
+			final long AckDeadline = GetAckDeadline();
+			final long Deadline = AckDeadline != DatagramReactor.NO_DEADLINE
+					&& (IdleDeadline == DatagramReactor.NO_DEADLINE || AckDeadline - IdleDeadline < 0) ? AckDeadline
+							: IdleDeadline;
+			if (Deadline != DatagramReactor.NO_DEADLINE) {
+				Wheel.Schedule(Reactor.GetDeadlineTimer(), Deadline);
+			}
+			final Boolean bReceived = bCanSend || HasExpired() ? DatagramChannelUtils.ReceiveRawOnce(Reactor, Raw)
+					: DatagramChannelUtils.ReceiveRawUntilWakeup(Reactor, Raw);
+			final EUdpPacketType PacketType = bReceived ? UdpMessage.PeekPacketType(Raw) : null;
+			if (bReceived) {
+				LastReceiveTime = System.nanoTime();
+			} else if (IdleTimeout > 0 && System.nanoTime() - (LastReceiveTime + IdleTimeout) >= 0) {
+				LOGGER.log(Level.INFO, "Idle for " + Context.GetOption().IdleTimeout + " s. Aborting...");
+				return false;
+			}
+			if (AckDeadline != DatagramReactor.NO_DEADLINE) {
+				for (IncomingMessage Stream : Incoming.values()) {
+					Stream.SendDueAck(System.nanoTime());
+				}
+			}
+
+			// Second, check exceptional cases: if we got FIN, the peer is done with the
+			// connection.
+			if (PacketType == EUdpPacketType.Fin) {
+				LOGGER.log(Level.INFO, "Received FIN. Aborting...");
+				UdpMessage.ConstructFromBuffer(Raw).ifPresent(Context::SetPeerFin);
+				return false;
+			}
+
+			// The server did not get the ACK of its SYNACK, send it again.
+			if (PacketType == EUdpPacketType.SynAck && Context.GetHandshakeAck().isPresent()) {
+				LOGGER.log(Level.INFO, "Received SYNACK again. Resending ACK...");
+				DatagramChannelUtils.Send(Reactor, Constants.ROUTER_ADDRESS, Context.GetHandshakeAck().get());
+			}
+
+			// Third, process Data and ACK of their stream.
+			if (PacketType == EUdpPacketType.Data && !OnData()) {
+				LOGGER.log(Level.WARNING, "Could not write the body. Aborting...");
+				return false;
+			} else if (PacketType == EUdpPacketType.Ack) {
+				OnAck();
+			}
+
+			// Fourth, resend packets that later packets overtook, without waiting for
+			// their timer, then packets whose timer expired.
+			for (OutgoingMessage Stream : Outgoing) {
+				Stream.Retransmit();
+			}
+
+			// Fifth, send another packet, taking turns between streams.
+			if (GetInFlightCount() < Controller.GetWindow() && Pacer.GetDelayNanos(System.nanoTime()) == 0) {
+				SendNext();
+			}
+		}
+	}
+
+	// Returns false if the body of the stream could not be written.
+	private Boolean OnData() {
+		final Optional<UdpMessage> Message = UdpMessage.ConstructFromBuffer(Raw);
+		if (Message.isEmpty() || Message.get().GetPayload().isEmpty()) {
+			return true;
+		}
+		final int StreamId = Message.get().GetStreamId();
+		if (Retired.get(StreamId)) {
+			IncomingMessage.AckDuplicate(Reactor, Context, StreamId, Message.get());
+			return true;
+		}
+		final IncomingMessage Stream = GetIncoming(StreamId);
+		final Boolean bAppended = Stream.OnData(Message.get());
+		if (Stream.HasFailed()) {
+			return false;
+		}
+		if (bAppended) {
+			Complete(StreamId, Stream);
+		}
+		return true;
+	}
+
+	private void OnAck() {
+		final int StreamId = UdpMessage.PeekStreamId(Raw);
+		for (int Index = 0; Index < Outgoing.size(); Index++) {
+			final OutgoingMessage Stream = Outgoing.get(Index);
+			if (Stream.GetStreamId() != StreamId) {
+				continue;
+			}
+			Stream.OnAck(Raw);
+			if (Stream.IsDone()) {
+				LOGGER.log(Level.INFO, "Stream " + StreamId + ": done sending. " + Estimator.toString() + " "
+						+ Controller.toString() + " " + Pacer.toString());
+				Stream.Close();
+				Outgoing.remove(Index);
+				if (NextOutgoingIndex > Index) {
+					NextOutgoingIndex--;
+				}
+			}
+			return;
+		}
+		// Otherwise, a late ACK of a stream that is done.
+	}
+
+	// Send the next packet of the next stream that has one.
+	private void SendNext() {
+		for (int i = 0; i < Outgoing.size(); i++) {
+			final int Index = (NextOutgoingIndex + i) % Outgoing.size();
+			final OutgoingMessage Stream = Outgoing.get(Index);
+			if (!Stream.HasNewPacket()) {
+				continue;
+			}
+			if (!Stream.SendNext()) {
+				// Nothing to send the rest from. The peer times out on the stream.
+				LOGGER.log(Level.WARNING,
+						"Stream " + Stream.GetStreamId() + ": could not read message. Dropping...");
+				Stream.Close();
+				Outgoing.remove(Index);
+				NextOutgoingIndex = Outgoing.isEmpty() ? 0 : Index % Outgoing.size();
+				return;
+			}
+			NextOutgoingIndex = (Index + 1) % Outgoing.size();
+			return;
+		}
+	}
+
+	private IncomingMessage GetIncoming(int StreamId) {
+		return GetIncoming(StreamId, Context.GetBodyDirectory());
+	}
+
+	private IncomingMessage GetIncoming(int StreamId, Optional<Path> BodyDirectory) {
+		// Stream 0 continues from the handshake SEQ, the others start at 0.
+		return Incoming.computeIfAbsent(StreamId, Id -> new IncomingMessage(Reactor, Context, Id,
+				Id == 0 ? Context.GetReceiveSequenceNumber() : 0, BodyDirectory));
+	}
+
+	// Hand the message over once it is a well formed HTTP message.
+	private void Complete(int StreamId, IncomingMessage Stream) {
+		final Optional<HttpMessage> PotentialHttpMessage = Stream.TryComplete();
+		if (PotentialHttpMessage.isPresent()) {
+			LOGGER.log(Level.INFO, "Stream " + StreamId + ": done receiving.");
+			Completed.add(new StreamMessage(StreamId, PotentialHttpMessage.get()));
+			Retire();
+		}
+	}
+
+	// Forget the streams complete for long enough that the peer got their ACKs,
+	// or at least stopped waiting for them, but for their ID.
+	private void Retire() {
+		final long Linger = Estimator.GetTimeoutNanos();
+		final long CurrentTime = System.nanoTime();
+		final Iterator<HashMap.Entry<Integer, IncomingMessage>> Entries = Incoming.entrySet().iterator();
+		while (Entries.hasNext()) {
+			final HashMap.Entry<Integer, IncomingMessage> Entry = Entries.next();
+			if (Entry.getValue().IsComplete() && CurrentTime - Entry.getValue().GetCompleteTime() >= Linger) {
+				Entries.remove();
+				Retired.set(Entry.getKey());
+				Retired.clear((Entry.getKey() + (UdpMessage.STREAM_ID_MAX + 1) / 2) & UdpMessage.STREAM_ID_MAX);
+			}
+		}
+	}
+
+	private int GetInFlightCount() {
+		int Count = 0;
+		for (OutgoingMessage Stream : Outgoing) {
+			Count += Stream.GetInFlightCount();
+		}
+		return Count;
+	}
+
+	private Boolean HasNewPacket() {
+		for (OutgoingMessage Stream : Outgoing) {
+			if (Stream.HasNewPacket()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private Boolean HasExpired() {
+		for (OutgoingMessage Stream : Outgoing) {
+			if (Stream.HasExpired()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// When the first delayed ACK of a stream is due, or NO_DEADLINE.
+	private long GetAckDeadline() {
+		long Deadline = DatagramReactor.NO_DEADLINE;
+		for (IncomingMessage Stream : Incoming.values()) {
+			final long StreamDeadline = Stream.GetAckDeadline();
+			if (StreamDeadline != DatagramReactor.NO_DEADLINE
+					&& (Deadline == DatagramReactor.NO_DEADLINE || StreamDeadline - Deadline < 0)) {
+				Deadline = StreamDeadline;
+			}
+		}
+		return Deadline;
+	}
+}
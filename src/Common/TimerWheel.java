@@ -0,0 +1,223 @@
+package Common;
+
+import java.util.ArrayList;
+
+// Hierarchical timer wheel shared by all connections of the process. Timers
+// are kept in intrusive lists, so scheduling and cancelling are O(1), and a
+// single daemon thread fires them, cascading from coarse to fine levels.
+public final class TimerWheel {
+
+	private static final long TICK_NANOS = 1_000_000L;
+	private static final int SLOT_BITS = 6;
+	private static final int SLOT_COUNT = 1 << SLOT_BITS;
+	private static final int SLOT_MASK = SLOT_COUNT - 1;
+	private static final int LEVEL_COUNT = 4;
+
+	private static TimerWheel Shared = null;
+
+	public static class Timer {
+		private final Runnable Task;
+		private long DeadlineTick;
+		private int Level;
+		private int Index;
+		private Timer Previous;
+		private Timer Next;
+		private Boolean bScheduled;
+		private volatile Boolean bExpired;
+
+		public Timer(Runnable Task) {
+			this.Task = Task;
+			this.bScheduled = false;
+			this.bExpired = false;
+		}
+
+		public Boolean HasExpired() {
+			return bExpired;
+		}
+	}
+
+	private final long StartNanos;
+	private long CurrentTick;
+	// Slots are circular lists headed by a sentinel timer.
+	private final Timer[][] Slots;
+	// One bit per non-empty slot, per level.
+	private final long[] Occupied;
+	private int Count;
+
+	private TimerWheel() {
+		StartNanos = System.nanoTime();
+		CurrentTick = 0;
+		Slots = new Timer[LEVEL_COUNT][SLOT_COUNT];
+		for (int Level = 0; Level < LEVEL_COUNT; Level++) {
+			for (int Index = 0; Index < SLOT_COUNT; Index++) {
+				Timer Sentinel = new Timer(null);
+				Sentinel.Previous = Sentinel;
+				Sentinel.Next = Sentinel;
+				Slots[Level][Index] = Sentinel;
+			}
+		}
+		Occupied = new long[LEVEL_COUNT];
+		Count = 0;
+	}
+
+	public static synchronized TimerWheel GetShared() {
+		if (Shared == null) {
+			Shared = new TimerWheel();
+			Thread WheelThread = new Thread(Shared::Run, "TimerWheel");
+			WheelThread.setDaemon(true);
+			WheelThread.start();
+		}
+		return Shared;
+	}
+
+	// (Re)arm Timer to fire at DeadlineNanos (System.nanoTime()).
+	public synchronized void Schedule(Timer Timer, long DeadlineNanos) {
+		if (Timer.bScheduled) {
+			Unlink(Timer);
+		}
+		Timer.bExpired = false;
+		// Nothing to cascade: skip the ticks spent idle.
+		if (Count == 0) {
+			CurrentTick = Math.max(CurrentTick, (System.nanoTime() - StartNanos) / TICK_NANOS);
+		}
+		// Round up: a timer never fires early.
+		Timer.DeadlineTick = Math.max((DeadlineNanos - StartNanos + TICK_NANOS - 1) / TICK_NANOS, CurrentTick + 1);
+		final long PreviousEvent = NextEventTick();
+		Link(Timer);
+		Count++;
+		// Wake the wheel thread if it sleeps past the new deadline.
+		if (Timer.DeadlineTick < PreviousEvent) {
+			notify();
+		}
+	}
+
+	public synchronized void Cancel(Timer Timer) {
+		if (Timer.bScheduled) {
+			Unlink(Timer);
+			Count--;
+		}
+	}
+
+	private void Link(Timer Timer) {
+		final long Delta = Timer.DeadlineTick - CurrentTick;
+		int Level = 0;
+		while (Level < LEVEL_COUNT - 1 && Delta >= 1L << (SLOT_BITS * (Level + 1))) {
+			Level++;
+		}
+		// Beyond the last level, park in its farthest slot and cascade again later.
+		final long Tick = Level == LEVEL_COUNT - 1
+				? Math.min(Timer.DeadlineTick, CurrentTick + (1L << (SLOT_BITS * LEVEL_COUNT)) - 1)
+				: Timer.DeadlineTick;
+		final int Index = (int) (Tick >>> (SLOT_BITS * Level)) & SLOT_MASK;
+		final Timer Sentinel = Slots[Level][Index];
+		Timer.Next = Sentinel;
+		Timer.Previous = Sentinel.Previous;
+		Sentinel.Previous.Next = Timer;
+		Sentinel.Previous = Timer;
+		Occupied[Level] |= 1L << Index;
+		Timer.Level = Level;
+		Timer.Index = Index;
+		Timer.bScheduled = true;
+	}
+
+	private void Unlink(Timer Timer) {
+		final Timer Next = Timer.Next;
+		Timer.Previous.Next = Next;
+		Next.Previous = Timer.Previous;
+		// If the slot became empty, both neighbours are its sentinel.
+		if (Next == Timer.Previous) {
+			Occupied[Timer.Level] &= ~(1L << Timer.Index);
+		}
+		Timer.Previous = null;
+		Timer.Next = null;
+		Timer.bScheduled = false;
+	}
+
+	// Earliest tick at which something must happen: a level 0 slot expires or a
+	// higher level slot cascades.
+	private long NextEventTick() {
+		long NextTick = Long.MAX_VALUE;
+		for (int Level = 0; Level < LEVEL_COUNT; Level++) {
+			if (Occupied[Level] == 0) {
+				continue;
+			}
+			final int Shift = SLOT_BITS * Level;
+			final int CurrentIndex = (int) (CurrentTick >>> Shift) & SLOT_MASK;
+			// Rotate so that bit 0 is the slot right after the current one.
+			final long Rotated = Long.rotateRight(Occupied[Level], (CurrentIndex + 1) & SLOT_MASK);
+			final int Distance = Long.numberOfTrailingZeros(Rotated) + 1;
+			final long Tick = ((CurrentTick >>> Shift) + Distance) << Shift;
+			NextTick = Math.min(NextTick, Tick);
+		}
+		return NextTick;
+	}
+
+	private void Run() {
+		ArrayList<Timer> Expired = new ArrayList<Timer>();
+		for (;;) {
+			synchronized (this) {
+				try {
+					for (;;) {
+						final long NowTick = (System.nanoTime() - StartNanos) / TICK_NANOS;
+						final long NextTick = Count > 0 ? NextEventTick() : Long.MAX_VALUE;
+						if (NextTick <= NowTick) {
+							break;
+						}
+						if (NextTick == Long.MAX_VALUE) {
+							wait();
+						} else {
+							final long WaitNanos = StartNanos + NextTick * TICK_NANOS - System.nanoTime();
+							if (WaitNanos > 0) {
+								wait(WaitNanos / 1_000_000L, (int) (WaitNanos % 1_000_000L));
+							}
+						}
+					}
+				} catch (InterruptedException e) {
+					return;
+				}
+				final long NowTick = (System.nanoTime() - StartNanos) / TICK_NANOS;
+				while (CurrentTick < NowTick) {
+					Advance(Expired);
+				}
+			}
+			// Run tasks outside the lock so that they may reschedule.
+			for (Timer Timer : Expired) {
+				Timer.Task.run();
+			}
+			Expired.clear();
+		}
+	}
+
+	private void Advance(ArrayList<Timer> Expired) {
+		CurrentTick++;
+		// Cascade coarser levels whose slot starts at this tick, coarsest first.
+		for (int Level = LEVEL_COUNT - 1; Level > 0; Level--) {
+			if ((CurrentTick & ((1L << (SLOT_BITS * Level)) - 1)) == 0) {
+				Cascade(Level, (int) (CurrentTick >>> (SLOT_BITS * Level)) & SLOT_MASK);
+			}
+		}
+		final int Index = (int) CurrentTick & SLOT_MASK;
+		final Timer Sentinel = Slots[0][Index];
+		while (Sentinel.Next != Sentinel) {
+			final Timer Timer = Sentinel.Next;
+			Unlink(Timer);
+			Count--;
+			Timer.bExpired = true;
+			Expired.add(Timer);
+		}
+	}
+
+	private void Cascade(int Level, int Index) {
+		final Timer Sentinel = Slots[Level][Index];
+		Occupied[Level] &= ~(1L << Index);
+		Timer Timer = Sentinel.Next;
+		Sentinel.Next = Sentinel;
+		Sentinel.Previous = Sentinel;
+		while (Timer != Sentinel) {
+			final Timer Next = Timer.Next;
+			Timer.bScheduled = false;
+			Link(Timer);
+			Timer = Next;
+		}
+	}
+}
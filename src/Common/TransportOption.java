@@ -0,0 +1,175 @@
+package Common;
+
+import java.util.ArrayList;
+import java.util.Optional;
+
+public class TransportOption {
+
+	// Special values of PaceRate.
+	public static final int PACE_OFF = -1;
+	public static final int PACE_AUTO = 0;
+
+	public ECongestionAlgorithm CongestionAlgorithm;
+	// Delayed ACK: ACK every AckEvery in-order packets or after AckDelay ms.
+	public int AckEvery;
+	public int AckDelay;
+	// Highest UdpMessage header version offered during the handshake.
+	public int HeaderVersion;
+	// Fast retransmit: a packet is taken as lost once DupThreshold later packets
+	// are ACKed.
+	public int DupThreshold;
+	// Pacing rate of data packets in KB/s, PACE_AUTO or PACE_OFF.
+	public int PaceRate;
+	// Largest datagram offered during the handshake.
+	public int DatagramSize;
+	// Most packets in flight offered during the handshake, either way.
+	public int WindowSize;
+	// Persistent connections: offered unless IdleTimeout is 0, in seconds without
+	// a packet before giving up on the peer.
+	public int IdleTimeout;
+	// Zero-RTT: a client sends a small GET in its SYN, a server answers it in its
+	// SYNACK.
+	public Boolean bEarlyData;
+	// Write packets of a body received to disk straight to their place in the
+	// file, even out of order, instead of holding them until the gap fills.
+	public Boolean bDirectWrites;
+	public Optional<String> Error;
+
+	public TransportOption() {
+		CongestionAlgorithm = ECongestionAlgorithm.Cubic;
+		AckEvery = 2;
+		AckDelay = 5;
+		HeaderVersion = UdpMessage.VERSION_4;
+		DupThreshold = 3;
+		PaceRate = PACE_OFF;
+		DatagramSize = UdpMessage.UDP_MESSAGE_MAX_SIZE;
+		WindowSize = 4096;
+		IdleTimeout = 30;
+		bEarlyData = true;
+		bDirectWrites = true;
+		Error = Optional.empty();
+	}
+
+	public static Boolean IsTransportOption(String OptionString) {
+		return OptionString.equals("cc") || OptionString.equals("ack-every") || OptionString.equals("ack-delay")
+				|| OptionString.equals("header") || OptionString.equals("dupthresh")
+				|| OptionString.equals("pace") || OptionString.equals("mtu")
+				|| OptionString.equals("window") || OptionString.equals("idle") || OptionString.equals("early")
+				|| OptionString.equals("direct");
+	}
+
+	// Parse a transport option. Returns false if OptionString is not one.
+	public Boolean Parse(String OptionString, String ParameterString) {
+		if (OptionString.equals("cc")) {
+			final Optional<ECongestionAlgorithm> Algorithm = ECongestionAlgorithm.FromName(ParameterString);
+			if (Algorithm.isPresent()) {
+				CongestionAlgorithm = Algorithm.get();
+			} else {
+				Error = Optional.of("ERROR: Unknown congestion control algorithm: " + ParameterString + ".");
+			}
+		} else if (OptionString.equals("ack-every")) {
+			AckEvery = ParsePositive(OptionString, ParameterString).orElse(AckEvery);
+		} else if (OptionString.equals("ack-delay")) {
+			AckDelay = ParsePositive(OptionString, ParameterString).orElse(AckDelay);
+		} else if (OptionString.equals("header")) {
+			HeaderVersion = ParsePositive(OptionString, ParameterString).orElse(HeaderVersion);
+			if (HeaderVersion > UdpMessage.VERSION_4) {
+				Error = Optional.of("ERROR: Unknown header version: " + ParameterString + ".");
+			}
+		} else if (OptionString.equals("dupthresh")) {
+			DupThreshold = ParsePositive(OptionString, ParameterString).orElse(DupThreshold);
+		} else if (OptionString.equals("pace")) {
+			if (ParameterString.equals("off")) {
+				PaceRate = PACE_OFF;
+			} else if (ParameterString.equals("auto")) {
+				PaceRate = PACE_AUTO;
+			} else {
+				PaceRate = ParsePositive(OptionString, ParameterString).orElse(PaceRate);
+			}
+		} else if (OptionString.equals("mtu")) {
+			DatagramSize = ParsePositive(OptionString, ParameterString).orElse(DatagramSize);
+			if (DatagramSize < UdpMessage.UDP_MESSAGE_MAX_SIZE || DatagramSize > UdpMessage.UDP_DATAGRAM_MAX_SIZE) {
+				Error = Optional.of("ERROR: Datagram size must be between " + UdpMessage.UDP_MESSAGE_MAX_SIZE + " and "
+						+ UdpMessage.UDP_DATAGRAM_MAX_SIZE + ": " + ParameterString + ".");
+			}
+		} else if (OptionString.equals("window")) {
+			WindowSize = ParsePositive(OptionString, ParameterString).orElse(WindowSize);
+			if (WindowSize > Constants.MAX_WINDOW_SIZE) {
+				Error = Optional.of("ERROR: Window size must be at most " + Constants.MAX_WINDOW_SIZE + ": "
+						+ ParameterString + ".");
+			}
+		} else if (OptionString.equals("idle")) {
+			IdleTimeout = ParameterString.equals("0") ? 0
+					: ParsePositive(OptionString, ParameterString).orElse(IdleTimeout);
+		} else if (OptionString.equals("early")) {
+			if (ParameterString.equals("on") || ParameterString.equals("off")) {
+				bEarlyData = ParameterString.equals("on");
+			} else {
+				Error = Optional.of("ERROR: Option -early requires 'on' or 'off': " + ParameterString + ".");
+			}
+		} else if (OptionString.equals("direct")) {
+			if (ParameterString.equals("on") || ParameterString.equals("off")) {
+				bDirectWrites = ParameterString.equals("on");
+			} else {
+				Error = Optional.of("ERROR: Option -direct requires 'on' or 'off': " + ParameterString + ".");
+			}
+		} else {
+			return false;
+		}
+		return true;
+	}
+
+	// Empty, with Error set, if ParameterString is not a positive integer. The
+	// option then keeps its value.
+	private Optional<Integer> ParsePositive(String OptionString, String ParameterString) {
+		int Value;
+		try {
+			Value = Integer.parseInt(ParameterString);
+		} catch (NumberFormatException e) {
+			// Rejected below, like a number that is not positive.
+			Value = 0;
+		}
+		if (Value <= 0) {
+			Error = Optional.of(
+					"ERROR: Option -" + OptionString + " requires a positive integer: " + ParameterString + ".");
+			return Optional.empty();
+		}
+		return Optional.of(Value);
+	}
+
+	// Parse and remove all transport options from Arguments.
+	public String[] ParseFrom(String[] Arguments) {
+		ArrayList<String> Remaining = new ArrayList<String>();
+		for (int i = 0; i < Arguments.length; ++i) {
+			final String OptionString = Arguments[i].startsWith("-") ? Arguments[i].substring(1) : "";
+			if (IsTransportOption(OptionString)) {
+				if (i + 1 < Arguments.length) {
+					Parse(OptionString, Arguments[++i]);
+				} else {
+					Error = Optional.of("ERROR: Option -" + OptionString + " requires a parameter.");
+				}
+			} else {
+				Remaining.add(Arguments[i]);
+			}
+		}
+		return Remaining.toArray(new String[0]);
+	}
+
+	public static String GetHelp() {
+		return "    -cc algorithm Congestion control algorithm: 'reno' or 'cubic'. Default is cubic.\n"
+				+ "    -ack-every N  ACK every N in-order packets. 1 disables delayed ACKs. Default is 2.\n"
+				+ "    -ack-delay ms Maximum delay of a delayed ACK. Default is 5 ms.\n"
+				+ "    -header N     Highest packet header version to negotiate: 1 (legacy), 2, 3 (32-bit SEQ) or 4\n"
+				+ "                  (streams). Default is 4.\n"
+				+ "    -dupthresh K  Resend a packet once K later packets are ACKed. Default is 3.\n"
+				+ "    -pace rate    Pace data packets: 'off', 'auto' (cwnd per RTT) or KB/s. Default is off.\n"
+				+ "    -mtu bytes    Largest datagram to negotiate, if the path allows it. Default is 1024 (legacy).\n"
+				+ "    -window N     Most packets in flight to negotiate, up to 32768. Default is 4096.\n"
+				+ "    -idle s       Keep the connection for further requests until idle for s seconds. 0 disables\n"
+				+ "                  persistent connections. Default is 30 s.\n"
+				+ "    -early on|off Send a small GET in the SYN, or answer it in the SYNACK. Default is on.\n"
+				+ "    -direct on|off\n"
+				+ "                  Write out-of-order packets of a body received to disk at their offset in the\n"
+				+ "                  file instead of holding them. Default is on.\n";
+	}
+}
@@ -0,0 +1,46 @@
+package Common;
+
+// Per-connection counters, reported when the connection ends.
+public class TransportStatistics {
+
+	private long DataPacketsSent;
+	private long Retransmissions;
+	private long FastRetransmissions;
+	private long TimeoutsAvoided;
+	private long AcksSent;
+	private long AcksSaved;
+
+	public void OnDataSent(Boolean bRetransmission) {
+		DataPacketsSent++;
+		if (bRetransmission) {
+			Retransmissions++;
+		}
+	}
+
+	public void OnFastRetransmit() {
+		FastRetransmissions++;
+	}
+
+	// A fast retransmitted packet was ACKed before its timer expired.
+	public void OnTimeoutAvoided() {
+		TimeoutsAvoided++;
+	}
+
+	// One ACK was sent for CoveredCount newly received packets.
+	public void OnAckSent(int CoveredCount) {
+		AcksSent++;
+		if (CoveredCount > 1) {
+			AcksSaved += CoveredCount - 1;
+		}
+	}
+
+	public long GetAcksSaved() {
+		return AcksSaved;
+	}
+
+	public String toString() {
+		return "Data sent: " + DataPacketsSent + " Retransmissions: " + Retransmissions + " Fast retransmissions: "
+				+ FastRetransmissions + " Timeouts avoided: " + TimeoutsAvoided + " ACKs sent: " + AcksSent
+				+ " ACKs saved: " + AcksSaved;
+	}
+}
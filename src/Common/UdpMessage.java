@@ -14,16 +14,47 @@ public class UdpMessage {
 
 	public static int NUMBER_MAX = (int) Math.pow(2, 16) - 1;
 
-	private static int HEADER_SIZE = 11;
+	public static int HEADER_SIZE = 11;
 	public static int PAYLOAD_MAX_SIZE = 1013;
 	public static int UDP_MESSAGE_MAX_SIZE = HEADER_SIZE + PAYLOAD_MAX_SIZE;
-
-	private EUdpPacketType PacketType; // 1 byte
+	// Largest UDP payload over IPv4. Connections may negotiate datagrams up to this
+	// size; UDP_MESSAGE_MAX_SIZE is what every peer and router accepts.
+	public static int UDP_DATAGRAM_MAX_SIZE = 65507;
+
+	// Version 1 is the legacy header above. Its payload ends at the last non-zero
+	// byte. Version 2 sets the high bit of the type byte and appends flags and
+	// the payload length, so the router, which only rewrites bytes 5 to 10,
+	// forwards it unchanged. Version 3 is version 2 with the high bit of the flags
+	// set and the high 16 bits of SEQ and ACK appended, for 32-bit numbers.
+	// Version 4 is version 3 with the next bit of the flags set too and a stream
+	// ID appended, for several messages at once on a connection.
+	public static final int VERSION_1 = 1;
+	public static final int VERSION_2 = 2;
+	public static final int VERSION_3 = 3;
+	public static final int VERSION_4 = 4;
+	public static int HEADER_SIZE_V2 = HEADER_SIZE + 3;
+	public static int HEADER_SIZE_V3 = HEADER_SIZE_V2 + 4;
+	public static int HEADER_SIZE_V4 = HEADER_SIZE_V3 + 2;
+	public static final int STREAM_ID_MAX = 0xFFFF;
+	private static final int VERSION_2_BIT = 0x80;
+	private static final int VERSION_3_BIT = 0x80;
+	private static final int VERSION_4_BIT = 0x40;
+	// Flags of a version 2 header.
+	public static final int FLAG_END_OF_MESSAGE = 0x01;
+	// ACK of a SYNACK with a cookie, echoing the options of the SYN.
+	public static final int FLAG_COOKIE_ECHO = 0x02;
+
+	private EUdpPacketType PacketType; // 1 byte, high bit set for version 2
 	private int SequenceNumber; // 2 bytes big-endian
 	private int AcknowledgmentNumber; // 2 bytes big-endian
 	private InetAddress Address; // 4 bytes IPv4
 	private int PortNumber; // 2 bytes big-endian
+	private int Flags; // Version 2: 1 byte, high bits set for version 3 and 4
+	// Version 2: payload length, 2 bytes big-endian
+	// Version 3: high 16 bits of SEQ then ACK, 2 bytes big-endian each
+	private int StreamId; // Version 4: 2 bytes big-endian
 	private Optional<byte[]> PayLoad;
+	private int Version;
 
 	private UdpMessage() {
 		PacketType = null;
@@ -31,8 +62,10 @@ public class UdpMessage {
 		AcknowledgmentNumber = -1;
 		Address = null;
 		PortNumber = -1;
+		Flags = 0;
+		StreamId = 0;
 		PayLoad = Optional.empty();
-
+		Version = VERSION_1;
 	}
 
 	public static Optional<UdpMessage> New(EUdpPacketType PacketType, int SequenceNumber, int AcknowledgmentNumber,
@@ -61,6 +94,7 @@ public class UdpMessage {
 			return Optional.empty();
 		}
 		if (PayLoad != null && PayLoad.length <= PAYLOAD_MAX_SIZE) {
+			// Also fits in a version 2 packet, see GetPayloadMaxSize.
 			Message.PayLoad = Optional.of(Arrays.copyOf(PayLoad, PayLoad.length));
 		} else if (PayLoad == null) {
 			LOGGER.log(Level.WARNING, "PayLoad is NULL.");
@@ -75,6 +109,11 @@ public class UdpMessage {
 	}
 
 	public static Optional<UdpMessage> ConstructSynNew(InetAddress Address, int PortNumber) {
+		return ConstructSynNew(Address, PortNumber, new byte[0]);
+	}
+
+	// PayLoad carries the HandshakeOptions.
+	public static Optional<UdpMessage> ConstructSynNew(InetAddress Address, int PortNumber, byte[] PayLoad) {
 		UdpMessage Message = new UdpMessage();
 		Message.PacketType = EUdpPacketType.Syn;
 		Message.SequenceNumber = (int) (Math.random() * (NUMBER_MAX - 1) + 1);
@@ -86,15 +125,31 @@ public class UdpMessage {
 			LOGGER.log(Level.WARNING, "PortNumber should be between 0 and 65535.");
 			return Optional.empty();
 		}
-		Message.PayLoad = Optional.empty();
+		if (PayLoad.length > PAYLOAD_MAX_SIZE) {
+			LOGGER.log(Level.WARNING, "PayLoad is too long: " + PayLoad.length + " bytes.");
+			return Optional.empty();
+		}
+		Message.PayLoad = PayLoad.length > 0 ? Optional.of(Arrays.copyOf(PayLoad, PayLoad.length)) : Optional.empty();
 		return Optional.of(Message);
 	}
 
 	public static Optional<UdpMessage> ConstructSynAckNew(int AcknowledgmentNumber, InetAddress Address,
 			int PortNumber) {
+		return ConstructSynAckNew(AcknowledgmentNumber, Address, PortNumber, new byte[0]);
+	}
+
+	public static Optional<UdpMessage> ConstructSynAckNew(int AcknowledgmentNumber, InetAddress Address,
+			int PortNumber, byte[] PayLoad) {
+		return ConstructSynAckNew((int) (Math.random() * (NUMBER_MAX - 1) + 1), AcknowledgmentNumber, Address,
+				PortNumber, PayLoad);
+	}
+
+	// SequenceNumber is chosen by the caller, such as a cookie.
+	public static Optional<UdpMessage> ConstructSynAckNew(int SequenceNumber, int AcknowledgmentNumber,
+			InetAddress Address, int PortNumber, byte[] PayLoad) {
 		UdpMessage Message = new UdpMessage();
 		Message.PacketType = EUdpPacketType.SynAck;
-		Message.SequenceNumber = (int) (Math.random() * (NUMBER_MAX - 1) + 1);
+		Message.SequenceNumber = SequenceNumber;
 		if (AcknowledgmentNumber >= 0) {
 			Message.AcknowledgmentNumber = AcknowledgmentNumber;
 		} else {
@@ -108,12 +163,22 @@ public class UdpMessage {
 			LOGGER.log(Level.WARNING, "PortNumber should be between 0 and 65535.");
 			return Optional.empty();
 		}
-		Message.PayLoad = Optional.empty();
+		if (PayLoad.length > PAYLOAD_MAX_SIZE) {
+			LOGGER.log(Level.WARNING, "PayLoad is too long: " + PayLoad.length + " bytes.");
+			return Optional.empty();
+		}
+		Message.PayLoad = PayLoad.length > 0 ? Optional.of(Arrays.copyOf(PayLoad, PayLoad.length)) : Optional.empty();
 		return Optional.of(Message);
 	}
 
 	public static Optional<UdpMessage> ConstructAckNew(int SequenceNumber, int AcknowledgmentNumber,
 			InetAddress Address, int PortNumber) {
+		return ConstructAckNew(SequenceNumber, AcknowledgmentNumber, Address, PortNumber, new byte[0]);
+	}
+
+	// PayLoad carries the options echoed to a SYNACK with a cookie.
+	public static Optional<UdpMessage> ConstructAckNew(int SequenceNumber, int AcknowledgmentNumber,
+			InetAddress Address, int PortNumber, byte[] PayLoad) {
 		UdpMessage Message = new UdpMessage();
 		Message.PacketType = EUdpPacketType.Ack;
 		if (SequenceNumber >= 0) {
@@ -135,7 +200,11 @@ public class UdpMessage {
 			LOGGER.log(Level.WARNING, "PortNumber should be between 0 and 65535.");
 			return Optional.empty();
 		}
-		Message.PayLoad = Optional.empty();
+		if (PayLoad.length > PAYLOAD_MAX_SIZE) {
+			LOGGER.log(Level.WARNING, "PayLoad is too long: " + PayLoad.length + " bytes.");
+			return Optional.empty();
+		}
+		Message.PayLoad = PayLoad.length > 0 ? Optional.of(Arrays.copyOf(PayLoad, PayLoad.length)) : Optional.empty();
 		return Optional.of(Message);
 	}
 
@@ -163,7 +232,11 @@ public class UdpMessage {
 
 		UdpMessage Message = new UdpMessage();
 
-		Message.PacketType = EUdpPacketType.FromValue(UnsignedByteToShort(Raw[0]));
+		if ((Raw[0] & VERSION_2_BIT) != 0) {
+			Message.Version = VERSION_2;
+		}
+
+		Message.PacketType = EUdpPacketType.FromValue(UnsignedByteToShort(Raw[0]) & ~VERSION_2_BIT);
 
 		if (Message.PacketType == null) {
 			LOGGER.log(Level.WARNING, "PacketType '" + UnsignedByteToShort(Raw[0]) + "' is not valid.");
@@ -183,7 +256,38 @@ public class UdpMessage {
 
 		Message.PortNumber = UnsignedByteToInt(Raw[9], Raw[10]);
 
-		if (Raw.length > HEADER_SIZE) {
+		if (Message.Version == VERSION_2) {
+			// The length is explicit, so the payload may end with zeros.
+			if (Raw.length < HEADER_SIZE_V2) {
+				LOGGER.log(Level.WARNING, "Byte array is too short. It does not contain all the header.");
+				return Optional.empty();
+			}
+			Message.Flags = UnsignedByteToShort(Raw[HEADER_SIZE]);
+			if ((Message.Flags & VERSION_3_BIT) != 0) {
+				Message.Version = (Message.Flags & VERSION_4_BIT) != 0 ? VERSION_4 : VERSION_3;
+				Message.Flags &= ~(VERSION_3_BIT | VERSION_4_BIT);
+			}
+			final int HeaderSize = GetHeaderSize(Message.Version);
+			if (Raw.length < HeaderSize) {
+				LOGGER.log(Level.WARNING, "Byte array is too short. It does not contain all the header.");
+				return Optional.empty();
+			}
+			if (Message.Version >= VERSION_3) {
+				Message.SequenceNumber |= UnsignedByteToInt(Raw[HEADER_SIZE_V2], Raw[HEADER_SIZE_V2 + 1]) << 16;
+				Message.AcknowledgmentNumber |= UnsignedByteToInt(Raw[HEADER_SIZE_V2 + 2], Raw[HEADER_SIZE_V2 + 3]) << 16;
+			}
+			if (Message.Version == VERSION_4) {
+				Message.StreamId = UnsignedByteToInt(Raw[HEADER_SIZE_V3], Raw[HEADER_SIZE_V3 + 1]);
+			}
+			final int PayLoadLength = UnsignedByteToInt(Raw[HEADER_SIZE + 1], Raw[HEADER_SIZE + 2]);
+			if (HeaderSize + PayLoadLength > Raw.length) {
+				LOGGER.log(Level.WARNING, "PayLoad length " + PayLoadLength + " exceeds the datagram.");
+				return Optional.empty();
+			}
+			if (PayLoadLength > 0) {
+				Message.PayLoad = Optional.of(Arrays.copyOfRange(Raw, HeaderSize, HeaderSize + PayLoadLength));
+			}
+		} else if (Raw.length > HEADER_SIZE) {
 			int EndIndex = -1;
 			for (int i = Raw.length - 1; i > HEADER_SIZE - 1; --i) {
 				if (Raw[i] != 0) {
@@ -206,31 +310,164 @@ public class UdpMessage {
 	public byte[] GenerateRaw() {
 		final int PayLoadSize = PayLoad.isPresent() ? PayLoad.get().length : 0;
 
-		ByteBuffer Buffer = ByteBuffer.allocate(HEADER_SIZE + PayLoadSize);
-
-		Buffer.put((byte) PacketType.GetValue());
-
-		Buffer.put(ToBytes(SequenceNumber));
+		ByteBuffer Buffer = ByteBuffer.allocate(GetHeaderSize(Version) + PayLoadSize);
 
-		Buffer.put(ToBytes(AcknowledgmentNumber));
+		WriteTo(Buffer);
 
-		Buffer.put(Address.getAddress());
+		return Buffer.array();
+	}
 
-		Buffer.put(ToBytes(PortNumber));
+	// Encode header and payload at the position of Buffer.
+	public void WriteTo(ByteBuffer Buffer) {
+		final int PayLoadSize = PayLoad.isPresent() ? PayLoad.get().length : 0;
+		WriteHeader(Buffer, Version, PacketType, SequenceNumber, AcknowledgmentNumber, Address.getAddress(),
+				PortNumber, Flags, StreamId, PayLoadSize);
 
 		if (PayLoad.isPresent()) {
 			Buffer.put(PayLoad.get());
 		}
+	}
 
-		return Buffer.array();
+	// Write a header at the position of Buffer without allocating. AddressBytes
+	// is the IPv4 address as returned by InetAddress.getAddress(). Flags and
+	// PayLoadLength are only written from version 2 on.
+	public static void WriteHeader(ByteBuffer Buffer, int Version, EUdpPacketType PacketType, int SequenceNumber,
+			int AcknowledgmentNumber, byte[] AddressBytes, int PortNumber, int Flags, int PayLoadLength) {
+		WriteHeader(Buffer, Version, PacketType, SequenceNumber, AcknowledgmentNumber, AddressBytes, PortNumber, Flags,
+				0, PayLoadLength);
 	}
 
-	private static byte[] ToBytes(int IntValue) {
-		final int Length = Integer.SIZE / 8;
-		ByteBuffer Buffer = ByteBuffer.allocate(Length);
-		// Ignore BufferOverflowException.
-		Buffer.putInt(IntValue);
-		return Arrays.copyOfRange(Buffer.array(), Length / 2, Length);
+	// Same, with the stream ID of a version 4 header.
+	public static void WriteHeader(ByteBuffer Buffer, int Version, EUdpPacketType PacketType, int SequenceNumber,
+			int AcknowledgmentNumber, byte[] AddressBytes, int PortNumber, int Flags, int StreamId,
+			int PayLoadLength) {
+		Buffer.put((byte) (PacketType.GetValue() | (Version >= VERSION_2 ? VERSION_2_BIT : 0)));
+		Buffer.putShort((short) SequenceNumber);
+		Buffer.putShort((short) AcknowledgmentNumber);
+		Buffer.put(AddressBytes, 0, 4);
+		Buffer.putShort((short) PortNumber);
+		if (Version >= VERSION_2) {
+			Buffer.put((byte) (Flags | (Version >= VERSION_3 ? VERSION_3_BIT : 0)
+					| (Version == VERSION_4 ? VERSION_4_BIT : 0)));
+			Buffer.putShort((short) PayLoadLength);
+		}
+		if (Version >= VERSION_3) {
+			Buffer.putShort((short) (SequenceNumber >>> 16));
+			Buffer.putShort((short) (AcknowledgmentNumber >>> 16));
+		}
+		if (Version == VERSION_4) {
+			Buffer.putShort((short) StreamId);
+		}
+	}
+
+	public static int GetHeaderSize(int Version) {
+		return Version == VERSION_4 ? HEADER_SIZE_V4
+				: Version == VERSION_3 ? HEADER_SIZE_V3 : Version == VERSION_2 ? HEADER_SIZE_V2 : HEADER_SIZE;
+	}
+
+	// Largest payload that keeps a packet within UDP_MESSAGE_MAX_SIZE.
+	public static int GetPayloadMaxSize(int Version) {
+		return GetPayloadMaxSize(Version, UDP_MESSAGE_MAX_SIZE);
+	}
+
+	// Largest payload that keeps a packet within DatagramSize.
+	public static int GetPayloadMaxSize(int Version, int DatagramSize) {
+		return DatagramSize - GetHeaderSize(Version);
+	}
+
+	// Whether Raw, from 0 to its limit, holds a complete header of a known type
+	// and, from version 2 on, the whole payload. O(1).
+	public static Boolean IsWellFormed(ByteBuffer Raw) {
+		if (Raw.limit() < HEADER_SIZE || PeekPacketType(Raw) == null) {
+			return false;
+		}
+		if ((Raw.get(0) & VERSION_2_BIT) != 0) {
+			if (Raw.limit() < HEADER_SIZE_V2) {
+				return false;
+			}
+			final int HeaderSize = GetHeaderSize(PeekVersion(Raw));
+			return Raw.limit() >= HeaderSize && HeaderSize + PeekPayloadLength(Raw) <= Raw.limit();
+		}
+		return true;
+	}
+
+	// Read header fields of a raw datagram in place. Raw must be well formed.
+	public static int PeekVersion(ByteBuffer Raw) {
+		if ((Raw.get(0) & VERSION_2_BIT) == 0) {
+			return VERSION_1;
+		}
+		final int Flags = Raw.get(HEADER_SIZE);
+		if ((Flags & VERSION_3_BIT) == 0) {
+			return VERSION_2;
+		}
+		return (Flags & VERSION_4_BIT) != 0 ? VERSION_4 : VERSION_3;
+	}
+
+	public static EUdpPacketType PeekPacketType(ByteBuffer Raw) {
+		return EUdpPacketType.FromValue(UnsignedByteToShort(Raw.get(0)) & ~VERSION_2_BIT);
+	}
+
+	public static int PeekFlags(ByteBuffer Raw) {
+		return PeekVersion(Raw) >= VERSION_2
+				? UnsignedByteToShort(Raw.get(HEADER_SIZE)) & ~(VERSION_3_BIT | VERSION_4_BIT)
+				: 0;
+	}
+
+	public static int PeekPayloadOffset(ByteBuffer Raw) {
+		return GetHeaderSize(PeekVersion(Raw));
+	}
+
+	// A version 1 payload runs to the end of the datagram, including any trailing
+	// zeros.
+	public static int PeekPayloadLength(ByteBuffer Raw) {
+		if (PeekVersion(Raw) >= VERSION_2) {
+			return UnsignedByteToInt(Raw.get(HEADER_SIZE + 1), Raw.get(HEADER_SIZE + 2));
+		}
+		return Raw.limit() - HEADER_SIZE;
+	}
+
+	public static int PeekSequenceNumber(ByteBuffer Raw) {
+		final int Low = UnsignedByteToInt(Raw.get(1), Raw.get(2));
+		if (PeekVersion(Raw) >= VERSION_3) {
+			return Low | UnsignedByteToInt(Raw.get(HEADER_SIZE_V2), Raw.get(HEADER_SIZE_V2 + 1)) << 16;
+		}
+		return Low;
+	}
+
+	public static int PeekAcknowledgmentNumber(ByteBuffer Raw) {
+		final int Low = UnsignedByteToInt(Raw.get(3), Raw.get(4));
+		if (PeekVersion(Raw) >= VERSION_3) {
+			return Low | UnsignedByteToInt(Raw.get(HEADER_SIZE_V2 + 2), Raw.get(HEADER_SIZE_V2 + 3)) << 16;
+		}
+		return Low;
+	}
+
+	// Stream 0 unless the header is version 4.
+	public static int PeekStreamId(ByteBuffer Raw) {
+		if (PeekVersion(Raw) == VERSION_4) {
+			return UnsignedByteToInt(Raw.get(HEADER_SIZE_V3), Raw.get(HEADER_SIZE_V3 + 1));
+		}
+		return 0;
+	}
+
+	// Address and port of the peer, which the router puts in place of those of the
+	// destination.
+	public static InetSocketAddress PeekSocketAddress(ByteBuffer Raw) {
+		try {
+			final InetAddress Address = InetAddress
+					.getByAddress(new byte[] { Raw.get(5), Raw.get(6), Raw.get(7), Raw.get(8) });
+			return new InetSocketAddress(Address, UnsignedByteToInt(Raw.get(9), Raw.get(10)));
+		} catch (UnknownHostException e) {
+			// Not with 4 bytes.
+			return null;
+		}
+	}
+
+	// Decode the datagram between 0 and the limit of Raw.
+	public static Optional<UdpMessage> ConstructFromBuffer(ByteBuffer Raw) {
+		byte[] Bytes = new byte[Raw.limit()];
+		Raw.get(0, Bytes);
+		return ConstructFromBytes(Bytes);
 	}
 
 	private static byte[] ToBytes(long LongValue) {
@@ -304,6 +541,32 @@ public class UdpMessage {
 		return PayLoad;
 	}
 
+	public int GetVersion() {
+		return Version;
+	}
+
+	// Encode this message with another header version.
+	public void SetVersion(int Version) {
+		this.Version = Version;
+	}
+
+	public int GetStreamId() {
+		return StreamId;
+	}
+
+	// Only encoded from version 4 on.
+	public void SetStreamId(int StreamId) {
+		this.StreamId = StreamId;
+	}
+
+	public Boolean HasFlag(int Flag) {
+		return (Flags & Flag) != 0;
+	}
+
+	public void SetFlag(int Flag) {
+		Flags |= Flag;
+	}
+
 	public InetSocketAddress GetSocketAddress() {
 		return new InetSocketAddress(Address, PortNumber);
 	}
@@ -315,6 +578,12 @@ public class UdpMessage {
 		Output += "ACK: " + AcknowledgmentNumber + " ";
 		Output += "Addr: " + Address.toString() + " ";
 		Output += "Port: " + PortNumber + " ";
+		if (Version >= VERSION_2) {
+			Output += "Flags: " + Flags + " ";
+		}
+		if (Version == VERSION_4) {
+			Output += "Stream: " + StreamId + " ";
+		}
 		if (PayLoad.isPresent()) {
 			Output += "PayLoad length: " + PayLoad.get().length;// new String(PayLoad.get());
 		} else {
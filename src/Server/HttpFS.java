@@ -3,25 +3,40 @@ package Server;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.SocketException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
 import java.nio.file.Files;
 import java.nio.file.InvalidPathException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.stream.IntStream;
 
 import Common.Constants;
-import Common.DatagramChannelUtils;
+import Common.ConnectionContext;
+import Common.EUdpPacketType;
+import Common.HandshakeOptions;
+import Common.TransportOption;
 import Common.UdpMessage;
 
 public class HttpFS {
 
 	private final static Logger LOGGER = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
 
-	private static final int SERVER_CLIENT_LIMIT = 10;
+	// Connection threads are small, as there may be tens of thousands of them, and
+	// go away after being idle for a while.
+	private static final long CONNECTION_THREAD_STACK_SIZE = 256 * 1024;
+	private static final int CONNECTION_THREAD_KEEP_ALIVE = 60;
+	// Socket buffers of the channel all connections share.
+	private static final int SOCKET_BUFFER_SIZE = 1 << 20;
 
 	public static void main(String[] args) {
 
@@ -39,73 +54,155 @@ public class HttpFS {
 			PrintHelp();
 			return;
 		}
+		if (!HttpProtocol.PrepareUploadDirectory(Option.Path)) {
+			System.out.println("ERROR: Cannot create the upload directory in '" + Option.Path + "'.");
+			return;
+		}
 
-		ServerConnection ServerConnections[] = new ServerConnection[SERVER_CLIENT_LIMIT];
-		Thread Threads[] = new Thread[SERVER_CLIENT_LIMIT];
+		// Connections by client, as the router gives it in every datagram. They all
+		// share the channel: each gets its own datagrams from the table in O(1).
+		final ConcurrentHashMap<InetSocketAddress, ServerConnection> ServerConnections;
+		ServerConnections = new ConcurrentHashMap<InetSocketAddress, ServerConnection>();
+		// Connections run on pooled threads, created as needed up to the limit and
+		// reused once their connection ends.
+		final AtomicInteger ThreadCount = new AtomicInteger();
+		final ThreadPoolExecutor Executor = new ThreadPoolExecutor(0, Option.ConnectionLimit,
+				CONNECTION_THREAD_KEEP_ALIVE, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+				Task -> new Thread(null, Task, "Connection-" + ThreadCount.incrementAndGet(),
+						CONNECTION_THREAD_STACK_SIZE));
 
-		try (DatagramChannel Channel = DatagramChannel.open();) {
-			Channel.configureBlocking(false);
+		try (DatagramChannel Channel = DatagramChannel.open()) {
 			// FIXME: Use port from option.
 			Channel.bind(new InetSocketAddress(Constants.SERVER_ADDRESS.getPort()));
+			// Room for bursts of all connections while this thread hands them over.
+			Channel.setOption(StandardSocketOptions.SO_RCVBUF, SOCKET_BUFFER_SIZE);
+			Channel.setOption(StandardSocketOptions.SO_SNDBUF, SOCKET_BUFFER_SIZE);
 			if (Option.bVerbose) {
 				LOGGER.log(Level.INFO, "Server started on port : " + Constants.SERVER_ADDRESS.getPort() + ".");
-				LOGGER.log(Level.INFO, "Up to " + SERVER_CLIENT_LIMIT + " clients handled simultaneously.");
+				LOGGER.log(Level.INFO, "Up to " + Option.ConnectionLimit + " clients handled simultaneously.");
 			}
 
+			// Beyond the backlog of connections waiting for the ACK of their SYNACK, SYNs
+			// are answered with a cookie instead, and the connection is only set up once
+			// the client ACKs it.
+			final AtomicInteger HalfOpenCount = new AtomicInteger();
+			final SynCookie Cookie = new SynCookie();
+			final HandshakeOptions ServerOffered = new ConnectionContext(Option.Transport).GetOffered();
+
+			final ByteBuffer Buffer = ByteBuffer.allocateDirect(UdpMessage.UDP_DATAGRAM_MAX_SIZE);
 			LOGGER.log(Level.INFO, "Waiting for SYN on " + Constants.SERVER_ADDRESS.toString() + "...");
 			while (true) {
-				// Get next connection.
-				Optional<UdpMessage> SynMsg = DatagramChannelUtils.ReceiveOnce(Channel);
-
-				// Check if any Thread is dead and clean up.
-				for (int i = 0; i < SERVER_CLIENT_LIMIT; ++i) {
-					if (Threads[i] != null && !Threads[i].isAlive()) {
-						ServerConnections[i] = null;
-						Threads[i] = null;
-						if (Option.bVerbose) {
-							LOGGER.log(Level.INFO, "Connecton closed with client #" + i + ".");
-						}
-					}
+				// The channel is blocking: connections send on it from their own thread.
+				Buffer.clear();
+				Channel.receive(Buffer);
+				Buffer.flip();
+				if (!UdpMessage.IsWellFormed(Buffer)) {
+					LOGGER.log(Level.WARNING, "Malformed message: " + Buffer.toString() + ".");
+					continue;
 				}
 
-				if (SynMsg.isPresent()) {
-					// Check if repeated SYN.
-					Boolean bDrop = false;
-					for (int i = 0; i < SERVER_CLIENT_LIMIT; ++i) {
-						if (Threads[i] != null) {
-							LOGGER.log(Level.INFO,
-									"Duplicate SYN detected: " + SynMsg.get().toString() + ". Dropping...");
-							if (ServerConnections[i].IsSameAddree(SynMsg.get().GetSocketAddress())) {
-								bDrop = true;
-								break;
-							}
-						}
+				// Hand the datagram over to its connection, if any. A repeated SYN makes it
+				// send its SYNACK again, a repeated echo of a cookie is dropped.
+				final InetSocketAddress ClientAddress = UdpMessage.PeekSocketAddress(Buffer);
+				final EUdpPacketType PacketType = UdpMessage.PeekPacketType(Buffer);
+				final Boolean bCookieEcho = PacketType == EUdpPacketType.Ack
+						&& (UdpMessage.PeekFlags(Buffer) & UdpMessage.FLAG_COOKIE_ECHO) != 0;
+				final ServerConnection Connection = ServerConnections.get(ClientAddress);
+				if (Connection != null) {
+					if (!bCookieEcho && !Connection.Deliver(Buffer)) {
+						LOGGER.log(Level.INFO, "Connection with " + ClientAddress + " is behind. Dropping...");
 					}
-					// Drop duplicate.
-					if (bDrop) {
+					continue;
+				}
+				if (PacketType == EUdpPacketType.Data) {
+					// The echo of a cookie may have been lost, and the client has moved on to
+					// its request. A SYNACK makes it echo again. Other Data, such as late
+					// packets of a connection that ended, is dropped.
+					if (!Cookie.WasIssuedTo(ClientAddress)) {
 						continue;
 					}
-					// Check if there is a free thread.
-					final int FreeThreadIndex = IntStream.range(0, SERVER_CLIENT_LIMIT).filter(i -> Threads[i] == null)
-							.findFirst().orElse(-1);
-					// If so, accept connection and send to SocketHandler.
-					if (FreeThreadIndex >= 0) {
-						if (SynMsg.get().IsSyn()) {
-							LOGGER.log(Level.INFO, "Received: " + SynMsg.get()
-									+ ". Launching connection thread for client " + FreeThreadIndex + "...");
-
-							ServerConnection ServerConnection = new ServerConnection(SynMsg.get(), Option.Path);
-							ServerConnections[FreeThreadIndex] = ServerConnection;
-							Threads[FreeThreadIndex] = new Thread(ServerConnection);
-							Threads[FreeThreadIndex].start();
-						}
-					} else {
-						// Otherwise, refuse connection.
-						if (Option.bVerbose) {
-							LOGGER.log(Level.INFO, "Connecton refused from: " + SynMsg.toString());
+					UdpMessage.ConstructSynAckNew(0, ClientAddress.getAddress(), ClientAddress.getPort())
+							.ifPresent(SynAckMsg -> Send(Channel, SynAckMsg));
+					continue;
+				}
+				if (PacketType != EUdpPacketType.Syn && !bCookieEcho) {
+					continue;
+				}
+
+				// The SYN, or the echo of a cookie in place of it.
+				final Optional<UdpMessage> HandshakeMsg = UdpMessage.ConstructFromBuffer(Buffer);
+				if (HandshakeMsg.isEmpty()) {
+					continue;
+				}
+				final Boolean bHalfOpen = PacketType == EUdpPacketType.Syn;
+				// The echo gives back the SEQ of the SYNACK as its ACK, and the MAC in its
+				// options.
+				if (bCookieEcho && !Cookie.Redeem(ClientAddress, HandshakeMsg.get().GetSequenceNumber(),
+						HandshakeMsg.get().GetAcknowledgmentNumber(), HandshakeOptions
+								.FromBytes(HandshakeMsg.get().GetPayload().orElse(new byte[0])).CookieMac)) {
+					LOGGER.log(Level.INFO, "Invalid cookie from " + ClientAddress + ". Dropping...");
+					continue;
+				}
+				if (bHalfOpen && HalfOpenCount.get() >= Option.Backlog) {
+					// Without options, a legacy client could not echo them. It sends its SYN
+					// again.
+					if (HandshakeMsg.get().GetPayload().isEmpty()) {
+						LOGGER.log(Level.INFO, "Backlog full. Dropping SYN of legacy client " + ClientAddress + ".");
+						continue;
+					}
+					// Answer what a connection would, but for a request in the SYN.
+					final HandshakeOptions Negotiated = ServerOffered
+							.Negotiate(HandshakeOptions.FromBytes(HandshakeMsg.get().GetPayload().get()));
+					final SynCookie.Issued Issued = Cookie.Generate(ClientAddress,
+							HandshakeMsg.get().GetSequenceNumber());
+					Negotiated.bEarlyData = false;
+					Negotiated.bCookie = true;
+					Negotiated.CookieMac = Issued.Mac;
+					UdpMessage.ConstructSynAckNew(Issued.SequenceNumber, 0, ClientAddress.getAddress(),
+							ClientAddress.getPort(), Negotiated.ToBytes())
+							.ifPresent(SynAckMsg -> Send(Channel, SynAckMsg));
+					continue;
+				}
+
+				// If there is room, accept connection and serve it on a thread of the pool.
+				// It leaves the table when done.
+				Boolean bAccepted = false;
+				if (ServerConnections.size() < Option.ConnectionLimit) {
+					LOGGER.log(Level.INFO, "Received: " + HandshakeMsg.get() + ". Launching connection thread for client "
+							+ ClientAddress + "...");
+					final ServerConnection ServerConnection = new ServerConnection(HandshakeMsg.get(), Option.Path,
+							Option.Transport, Channel, HalfOpenCount);
+					ServerConnections.put(ClientAddress, ServerConnection);
+					if (bHalfOpen) {
+						HalfOpenCount.incrementAndGet();
+					}
+					try {
+						Executor.execute(() -> {
+							try {
+								ServerConnection.run();
+							} finally {
+								ServerConnections.remove(ClientAddress, ServerConnection);
+								if (Option.bVerbose) {
+									LOGGER.log(Level.INFO, "Connecton closed with client " + ClientAddress + ".");
+								}
+							}
+						});
+						bAccepted = true;
+					} catch (RejectedExecutionException e) {
+						// Threads of connections that just ended may not be back in the pool yet.
+						ServerConnections.remove(ClientAddress, ServerConnection);
+						if (bHalfOpen) {
+							HalfOpenCount.decrementAndGet();
 						}
 					}
 				}
+				// Otherwise, refuse connection. The client sends its SYN, or its echo, again.
+				if (!bAccepted && bCookieEcho) {
+					Cookie.Forget(ClientAddress);
+				}
+				if (!bAccepted && Option.bVerbose) {
+					LOGGER.log(Level.INFO, "Connecton refused from: " + ClientAddress);
+				}
 			}
 		} catch (SocketException e1) {
 			// TODO Auto-generated catch block
@@ -116,25 +213,51 @@ public class HttpFS {
 		}
 	}
 
+	// Answer on the shared channel, from the thread that receives from it.
+	private static void Send(DatagramChannel Channel, UdpMessage Message) {
+		LOGGER.log(Level.INFO, "Sending: " + Message + ".");
+		try {
+			Channel.send(ByteBuffer.wrap(Message.GenerateRaw()), Constants.ROUTER_ADDRESS);
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "ERROR: IOException: " + e.toString());
+		}
+	}
+
 	public static void PrintHelp() {
-		System.out.println("httpfs is a simple file server.\n" + "" + "usage: httpfs [-v] [-p PORT] [-d PATH-TO-DIR]\n"
+		System.out.println("httpfs is a simple file server.\n" + ""
+				+ "usage: httpfs [-v] [-p PORT] [-d PATH-TO-DIR] [-c N] [-b N]\n"
 				+ "" + "    -v Prints debugging messages." + ""
 				+ "    -p Specifies the port number that the server will listen and serve at. Default is 8080." + ""
-				+ "    -d Specifies the directory that the server will use to read/write requested files. Default is the current directory when launching the application.");
+				+ "    -d Specifies the directory that the server will use to read/write requested files. Default is the current directory when launching the application.\n"
+				+ "    -c Specifies the number of clients served at once. Default is "
+				+ FSOption.DEFAULT_CONNECTION_LIMIT + ".\n"
+				+ "    -b Specifies the number of clients left to end their handshake before the others get a SYN\n"
+				+ "       cookie: the server then keeps nothing until they ACK it. Default is "
+				+ FSOption.DEFAULT_BACKLOG + ".\n"
+				+ TransportOption.GetHelp());
 	}
 
 	static private class FSOption {
 		private static int DEFAULT_PORT = 8080;
+		private static int DEFAULT_CONNECTION_LIMIT = 10000;
+		private static int DEFAULT_BACKLOG = 256;
 
 		public boolean bVerbose;
 		public Integer Port;
 		public Path Path;
+		public int ConnectionLimit;
+		// Connections waiting for the ACK of their SYNACK. 0 always sends a cookie.
+		public int Backlog;
+		public TransportOption Transport;
 		public Optional<String> Error;
 
 		public FSOption(String[] Arguments) {
 			bVerbose = false;
 			Port = DEFAULT_PORT;
 			Path = Paths.get("").toAbsolutePath();
+			ConnectionLimit = DEFAULT_CONNECTION_LIMIT;
+			Backlog = DEFAULT_BACKLOG;
+			Transport = new TransportOption();
 			Error = Optional.empty();
 
 			System.out.print(Path.toString());
@@ -148,7 +271,9 @@ public class HttpFS {
 					final String OptionString = (Arguments[i].length() > 1) ? Arguments[i].substring(1) : "";
 					// We assume that all these options require a parameter.
 					// FIXME: Find a better way to deal with these options.
-					if (bLastArgument && (OptionString.equals("p") || OptionString.equals("d"))) {
+					if (bLastArgument && (OptionString.equals("p") || OptionString.equals("d")
+							|| OptionString.equals("c") || OptionString.equals("b")
+							|| TransportOption.IsTransportOption(OptionString))) {
 						Error = Optional.of("ERROR: Option -" + OptionString + " requires a parameter.");
 						return;
 					}
@@ -173,6 +298,31 @@ public class HttpFS {
 							Error = Optional.of("ERROR: Invalid path: " + ParameterString + ".");
 							return;
 						}
+					} else if (OptionString.equals("c")) {
+						try {
+							ConnectionLimit = Integer.parseInt(ParameterString);
+						} catch (NumberFormatException e) {
+							ConnectionLimit = 0;
+						}
+						if (ConnectionLimit <= 0) {
+							Error = Optional.of("ERROR: Invalid number of clients: " + ParameterString + ".");
+							return;
+						}
+					} else if (OptionString.equals("b")) {
+						try {
+							Backlog = Integer.parseInt(ParameterString);
+						} catch (NumberFormatException e) {
+							Backlog = -1;
+						}
+						if (Backlog < 0) {
+							Error = Optional.of("ERROR: Invalid backlog: " + ParameterString + ".");
+							return;
+						}
+					} else if (Transport.Parse(OptionString, ParameterString)) {
+						if (Transport.Error.isPresent()) {
+							Error = Transport.Error;
+							return;
+						}
 					} else {
 						Error = Optional.of("ERROR: option -" + OptionString + " is unknown.");
 						return;
@@ -9,9 +9,12 @@ import java.net.Socket;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
 import java.util.List;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
+import Common.EHttpOperation;
 import Common.HttpRequest;
 import Common.HttpResponse;
 
@@ -19,6 +22,10 @@ public class HttpProtocol implements Runnable {
 
 	final static String TEXT_HTML_FILE_TYPE = "text/html";
 	final static int MAX_DELAY = 200;
+	// Where bodies of requests are received before they are posted. It is on the
+	// file system of the served directory, so that posting is an atomic move, but
+	// it is never served itself.
+	final static String UPLOAD_DIRECTORY_NAME = ".httpfs-uploads";
 
 	final private Socket ClientSocket;
 	final private Path RootPath;
@@ -58,6 +65,34 @@ public class HttpProtocol implements Runnable {
 		}
 	}
 
+	public static Path GetUploadDirectory(Path RootPath) {
+		return RootPath.resolve(UPLOAD_DIRECTORY_NAME);
+	}
+
+	// Create the upload directory, readable by the server only, and delete bodies
+	// left there by a server that did not end cleanly. Returns false if it cannot
+	// be created.
+	public static Boolean PrepareUploadDirectory(Path RootPath) {
+		final Path UploadDirectory = GetUploadDirectory(RootPath);
+		try {
+			Files.createDirectories(UploadDirectory);
+			try {
+				Files.setPosixFilePermissions(UploadDirectory, PosixFilePermissions.fromString("rwx------"));
+			} catch (UnsupportedOperationException e) {
+				// Not a POSIX file system: it keeps the permissions of its parent.
+			}
+			try (Stream<Path> Leftovers = Files.list(UploadDirectory)) {
+				for (Path Leftover : Leftovers.collect(Collectors.toList())) {
+					Files.deleteIfExists(Leftover);
+				}
+			}
+		} catch (IOException e) {
+			System.out.println("Server error : " + e);
+			return false;
+		}
+		return true;
+	}
+
 	private static String GenerateDirectoryHtml(Path RootPath, Path FullPath) {
 		StringBuilder StringBuilder = new StringBuilder();
 
@@ -76,6 +111,9 @@ public class HttpProtocol implements Runnable {
 		try {
 			List<Path> Paths = Files.list(FullPath).collect(Collectors.toList());
 			for (Path CurrentPath : Paths) {
+				if (CurrentPath.equals(GetUploadDirectory(RootPath))) {
+					continue;
+				}
 				final Path RelativePath = RootPath.relativize(CurrentPath);
 				StringBuilder.append("<li><a href=\"" + RelativePath.toString() + "\">" + RelativePath.getFileName()
 						+ "</a></li>\n");
@@ -156,6 +194,7 @@ public class HttpProtocol implements Runnable {
 		} else {
 			Response = new HttpResponse(400, GenerateErrorHtml(RootPath, Paths.get("").toAbsolutePath(), 400),
 					TEXT_HTML_FILE_TYPE);
+			Request.DiscardBody();
 			return Response;
 		}
 
@@ -164,6 +203,14 @@ public class HttpProtocol implements Runnable {
 		if (!FullPath.startsWith(RootPath)) {
 			FullPath = RootPath;
 		}
+		// Bodies being received are nobody's business.
+		if (FullPath.startsWith(GetUploadDirectory(RootPath))) {
+			final int StatusCode = Request.GetOperation() == EHttpOperation.get ? 404 : 403;
+			Response = new HttpResponse(StatusCode, GenerateErrorHtml(RootPath, FullPath, StatusCode),
+					TEXT_HTML_FILE_TYPE);
+			Request.DiscardBody();
+			return Response;
+		}
 
 		switch (Request.GetOperation()) {
 		case get:
@@ -173,13 +220,9 @@ public class HttpProtocol implements Runnable {
 				Response = new HttpResponse(403, GenerateErrorHtml(RootPath, FullPath, 403), TEXT_HTML_FILE_TYPE);
 			} else if (Files.isRegularFile(FullPath)) {
 				try {
-					final String FileContent = new String(Files.readAllBytes(FullPath));
+					// The file is read as the response is sent, not here.
 					final String FileType = Files.probeContentType(FullPath);
-					if (FileType != null) {
-						Response = new HttpResponse(200, FileContent, FileType);
-					} else {
-						Response = new HttpResponse(200, FileContent);
-					}
+					Response = new HttpResponse(200, FullPath, Files.size(FullPath), FileType);
 				} catch (IOException e) {
 					e.printStackTrace();
 				}
@@ -196,7 +239,7 @@ public class HttpProtocol implements Runnable {
 					if (!Files.exists(FullPath.getParent())) {
 						Files.createDirectories(FullPath.getParent());
 					}
-					Files.write(FullPath, Request.GetBody().getBytes());
+					Request.MoveBodyTo(FullPath);
 					Response = new HttpResponse(201, GeneratePostHtml(RootPath, FullPath), TEXT_HTML_FILE_TYPE);
 				} catch (IOException e) {
 					Response = new HttpResponse(403, GenerateErrorHtml(RootPath, FullPath, 403), TEXT_HTML_FILE_TYPE);
@@ -207,6 +250,8 @@ public class HttpProtocol implements Runnable {
 			break;
 		}
 
+		// A body received to disk and not posted goes away with the request.
+		Request.DiscardBody();
 		return Response;
 	}
 
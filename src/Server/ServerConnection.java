@@ -3,19 +3,33 @@ package Server;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
 import java.nio.file.Path;
+import java.util.Arrays;
 import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import Common.ConnectionContext;
 import Common.Constants;
 import Common.DatagramChannelUtils;
+import Common.DatagramReactor;
+import Common.DemultiplexedReactor;
+import Common.EHttpOperation;
+import Common.HandshakeOptions;
+import Common.HttpFramer;
 import Common.HttpMessage;
 import Common.HttpRequest;
 import Common.HttpResponse;
+import Common.MessageSource;
+import Common.RttEstimator;
 import Common.SelectiveRepeatReceiver;
 import Common.SelectiveRepeatSender;
+import Common.SequenceSpace;
+import Common.StreamMultiplexer;
+import Common.TransportOption;
 import Common.UdpMessage;
 
 public class ServerConnection implements Runnable {
@@ -28,104 +42,313 @@ public class ServerConnection implements Runnable {
 	private int LocalSequenceNumber;
 	final private int RemoteSequenceNumber;
 	final private Path RootPath;
+	final private ConnectionContext Context;
+	final private RttEstimator Estimator;
+	// Options offered in the SYN, or null for a legacy client.
+	final private HandshakeOptions Offered;
+	// What follows the options in the SYN: a request sent ahead of the handshake.
+	final private byte[] EarlyData;
+	// Datagrams of the client, handed over by the server from its channel.
+	final private DemultiplexedReactor Reactor;
+	// Connections waiting for the ACK of their SYNACK, shared with the server. This
+	// one counts until its handshake ends.
+	final private AtomicInteger HalfOpenCount;
+	private Boolean bHalfOpen;
 
-	public ServerConnection(UdpMessage UdpMessage, Path RootPath) {
+	// UdpMessage is the SYN, or the ACK of a SYNACK with a cookie, which gives back
+	// the SEQ and options of the SYN: the handshake is then over already.
+	public ServerConnection(UdpMessage UdpMessage, Path RootPath, TransportOption Option,
+			DatagramChannel SharedChannel, AtomicInteger HalfOpenCount) {
 		this.RemoteSocketAddress = UdpMessage.GetSocketAddress();
 		this.RemoteSequenceNumber = UdpMessage.GetSequenceNumber();
+		this.LocalSequenceNumber = UdpMessage.IsAck() ? UdpMessage.GetAcknowledgmentNumber() : 0;
 		this.RootPath = RootPath;
+		this.Context = new ConnectionContext(Option);
+		// Bodies of requests are written on the file system where they are posted,
+		// so that posting them is only a move, but out of sight until then.
+		Context.SetBodyDirectory(Optional.of(HttpProtocol.GetUploadDirectory(RootPath)));
+		this.Estimator = Context.GetEstimator();
+		this.Offered = UdpMessage.GetPayload().isPresent() ? HandshakeOptions.FromBytes(UdpMessage.GetPayload().get())
+				: null;
+		this.EarlyData = UdpMessage.GetPayload().isPresent()
+				? HandshakeOptions.GetEarlyData(UdpMessage.GetPayload().get())
+				: new byte[0];
+		this.Reactor = new DemultiplexedReactor(SharedChannel, Option.WindowSize);
+		this.HalfOpenCount = HalfOpenCount;
+		this.bHalfOpen = !UdpMessage.IsAck();
 	}
 
-	public Boolean IsSameAddree(InetSocketAddress Address) {
-		return this.RemoteSocketAddress.getAddress().equals(Address.getAddress())
-				&& this.RemoteSocketAddress.getPort() == Address.getPort();
+	// Hand over a datagram of the client. Returns false if it was dropped.
+	public Boolean Deliver(ByteBuffer Datagram) {
+		return Reactor.Deliver(Datagram);
 	}
 
-	@Override
-	public void run() {
-		try (DatagramChannel Channel = DatagramChannel.open();) {
-			// Channel configuration.
-			Channel.configureBlocking(false);
-			// Port 0 will select any available one.
-			Channel.bind(new InetSocketAddress(0));
-			// Get local port.
-			LocalSocketAddress = (InetSocketAddress) Channel.getLocalAddress();
-
-			// Get SYNACK.
-			final Optional<UdpMessage> SynAckMsg = UdpMessage.ConstructSynAckNew(LocalSequenceNumber,
-					RemoteSocketAddress.getAddress(), RemoteSocketAddress.getPort());
-			if (SynAckMsg.isEmpty()) {
-				return;
+	// The request in the SYN, if complete and safe to answer before the handshake
+	// ends: a duplicate SYN may replay it, so GET only.
+	private Optional<HttpRequest> ParseEarlyRequest() {
+		final HttpFramer Framer = new HttpFramer();
+		Framer.Append(EarlyData);
+		if (!Framer.IsComplete()) {
+			return Optional.empty();
+		}
+		final Optional<HttpMessage> Message = HttpMessage.TryToParse(Framer.ToBytes());
+		if (Message.isPresent() && Message.get() instanceof HttpRequest
+				&& ((HttpRequest) Message.get()).GetOperation() == EHttpOperation.get) {
+			return Optional.of((HttpRequest) Message.get());
+		}
+		return Optional.empty();
+	}
+
+	// Serve requests concurrently, each answered on its stream as soon as it is
+	// complete. Returns false if the connection is to be dropped without teardown.
+	private Boolean ServeStreams(DatagramReactor Reactor, Optional<HttpResponse> EarlyResponse, int EarlyLength,
+			long EarlyTotalLength) {
+		final StreamMultiplexer Mux = new StreamMultiplexer(Reactor, RemoteSocketAddress.getAddress(),
+				RemoteSocketAddress.getPort(), Context);
+		try {
+			// The request in the SYN is stream 0. Send the rest of its response.
+			if (EarlyResponse.isPresent() && EarlyLength < EarlyTotalLength) {
+				LOGGER.log(Level.INFO, "Sending rest of response.");
+				Mux.Send(0, EarlyResponse.get(), EarlyLength);
+			}
+			if (EarlyResponse.isPresent() && !Context.IsKeepAlive()) {
+				return Mux.Flush() || Context.GetPeerFin().isPresent();
 			}
 
-			// Get Server SEQ from SYNACK.
-			LocalSequenceNumber = SynAckMsg.get().GetSequenceNumber();
+			for (;;) {
+				if (Context.GetPeerFin().isPresent()) {
+					return true;
+				}
+				final Optional<StreamMultiplexer.StreamMessage> ReceivedMessage = Mux.Receive();
+				if (ReceivedMessage.isEmpty()) {
+					// FIN, or idle.
+					return Context.GetPeerFin().isPresent();
+				}
+				if (!(ReceivedMessage.get().GetMessage() instanceof HttpRequest)) {
+					LOGGER.log(Level.WARNING, "Received message is not a HTTP message, but not a reply.");
+					return false;
+				}
+				final int StreamId = ReceivedMessage.get().GetStreamId();
+				LOGGER.log(Level.INFO, "Done receiving request on stream " + StreamId + ".");
 
-			// Send SYNACK and try to receive ACK.
-			Optional<UdpMessage> AckMsg = Optional.empty();
-			for (int i = 0; i < Constants.RETRANSMISSION_ATTEMPTS; i++) {
-				LOGGER.log(Level.INFO, "Sending: " + SynAckMsg.get() + ".");
-				DatagramChannelUtils.Send(Channel, Constants.ROUTER_ADDRESS, SynAckMsg.get());
+				// Get Response from HTTP Protocol.
+				final HttpResponse Response = HttpProtocol.GetResponse(RootPath,
+						(HttpRequest) ReceivedMessage.get().GetMessage(), false);
+				if (Response.GetError().isPresent()) {
+					LOGGER.log(Level.WARNING, Response.GetError().get());
+					return false;
+				}
+				LOGGER.log(Level.INFO, "Sending response on stream " + StreamId + ".");
+				Mux.Send(StreamId, Response);
 
-				LOGGER.log(Level.INFO, "Waiting for ACK on " + LocalSocketAddress.toString() + "...");
-				AckMsg = DatagramChannelUtils.Receive(Channel, Constants.DEFAULT_TIMEOUT);
+				if (!Context.IsKeepAlive()) {
+					return Mux.Flush() || Context.GetPeerFin().isPresent();
+				}
+			}
+		} finally {
+			Mux.Close();
+		}
+	}
 
-				// If received, break.
-				if (AckMsg.isPresent()) {
-					if (AckMsg.get().IsAck()) {
-						LOGGER.log(Level.INFO, "Received: " + AckMsg.get());
-						break;
-					} else if (AckMsg.get().IsData()) {
-						LOGGER.log(Level.INFO, "Received data (assume ACK was sent): " + AckMsg.get());
-						break;
-					} else {
-						AckMsg = Optional.empty();
+	// Send the SYNACK until the client ACKs it. Returns false if it never does.
+	private Boolean SendSynAck(DatagramReactor Reactor, byte[] SynAckPayload, Boolean bEarlyResponse)
+			throws IOException {
+		// Get SYNACK.
+		final Optional<UdpMessage> SynAckMsg = UdpMessage.ConstructSynAckNew(LocalSequenceNumber,
+				RemoteSocketAddress.getAddress(), RemoteSocketAddress.getPort(), SynAckPayload);
+		if (SynAckMsg.isEmpty()) {
+			return false;
+		}
+		// A legacy header would strip trailing zeros of the response.
+		if (bEarlyResponse) {
+			SynAckMsg.get().SetVersion(Context.GetHeaderVersion());
+		}
+
+		// Get Server SEQ from SYNACK.
+		LocalSequenceNumber = SynAckMsg.get().GetSequenceNumber();
+
+		// Send SYNACK and try to receive ACK.
+		Optional<UdpMessage> AckMsg = Optional.empty();
+		for (int i = 0; i < Constants.RETRANSMISSION_ATTEMPTS; i++) {
+			LOGGER.log(Level.INFO, "Sending: " + SynAckMsg.get() + ".");
+			final long SendTime = System.nanoTime();
+			DatagramChannelUtils.Send(Reactor, Constants.ROUTER_ADDRESS, SynAckMsg.get());
+
+			LOGGER.log(Level.INFO, "Waiting for ACK on " + LocalSocketAddress.toString() + "...");
+			AckMsg = DatagramChannelUtils.Receive(Reactor, Estimator.GetTimeout());
+
+			// If received, break.
+			if (AckMsg.isPresent()) {
+				if (AckMsg.get().IsAck()) {
+					LOGGER.log(Level.INFO, "Received: " + AckMsg.get());
+					// Only the first SYNACK gives an unambiguous sample.
+					if (i == 0) {
+						Estimator.AddSample(System.nanoTime() - SendTime);
 					}
+					break;
+				} else if (AckMsg.get().IsData()) {
+					LOGGER.log(Level.INFO, "Received data (assume ACK was sent): " + AckMsg.get());
+					break;
+				} else if (AckMsg.get().IsFin()) {
+					// The client may already be done if it got its response in the SYNACK.
+					LOGGER.log(Level.INFO, "Received FIN (assume ACK was sent): " + AckMsg.get());
+					Context.SetPeerFin(AckMsg.get());
+					break;
+				} else {
+					// A SYN again: the SYNACK was lost, so send it again right away.
+					AckMsg = Optional.empty();
 				}
+			} else {
+				Estimator.Backoff();
 			}
-			if (AckMsg.isEmpty()) {
-				LOGGER.log(Level.WARNING, "Connection attemp timeout: ACK never received.");
-				return;
+		}
+		return AckMsg.isPresent();
+	}
+
+	private void EndHalfOpen() {
+		if (bHalfOpen) {
+			bHalfOpen = false;
+			HalfOpenCount.decrementAndGet();
+		}
+	}
+
+	@Override
+	public void run() {
+		try (DatagramReactor Reactor = this.Reactor) {
+			// The client keeps talking to the port of the server.
+			LocalSocketAddress = (InetSocketAddress) Reactor.GetChannel().getLocalAddress();
+
+			// Answer the options offered in the SYN. A legacy client gets a legacy
+			// SYNACK and the legacy header.
+			byte[] SynAckPayload = new byte[0];
+			// A complete GET in the SYN is answered right away, with the start of the
+			// response in the SYNACK.
+			Optional<HttpResponse> EarlyResponse = Optional.empty();
+			int EarlyLength = 0;
+			long EarlyTotalLength = 0;
+			if (Offered != null) {
+				Context.SetNegotiated(Context.GetOffered().Negotiate(Offered));
+				final Optional<HttpRequest> EarlyRequest = Context.GetNegotiated().bEarlyData
+						&& Context.GetHeaderVersion() >= UdpMessage.VERSION_2 ? ParseEarlyRequest() : Optional.empty();
+				Context.GetNegotiated().bEarlyData = EarlyRequest.isPresent();
+				SynAckPayload = Context.GetNegotiated().ToBytes();
+				if (EarlyRequest.isPresent()) {
+					LOGGER.log(Level.INFO, "Received request in SYN.");
+					final HttpResponse Response = HttpProtocol.GetResponse(RootPath, EarlyRequest.get(), false);
+					if (Response.GetError().isPresent()) {
+						LOGGER.log(Level.WARNING, Response.GetError().get());
+						return;
+					}
+					// Only read the start of the response, the rest is read as it is sent.
+					final Optional<MessageSource> Source = Response.GetSource();
+					if (Source.isEmpty()) {
+						LOGGER.log(Level.WARNING, "Could not read response.");
+						return;
+					}
+					EarlyTotalLength = Source.get().GetLength();
+					EarlyLength = (int) Math.min(EarlyTotalLength,
+							UdpMessage.GetPayloadMaxSize(Context.GetHeaderVersion()) - SynAckPayload.length);
+					final int OptionsLength = SynAckPayload.length;
+					SynAckPayload = Arrays.copyOf(SynAckPayload, OptionsLength + EarlyLength);
+					final Boolean bRead = Source.get().Read(ByteBuffer.wrap(SynAckPayload, OptionsLength, EarlyLength),
+							EarlyLength);
+					Source.get().close();
+					if (!bRead) {
+						LOGGER.log(Level.WARNING, "Could not read response.");
+						return;
+					}
+					EarlyResponse = Optional.of(Response);
+				}
 			}
+			LOGGER.log(Level.INFO, "Negotiated: " + Context.GetNegotiated() + ".");
+			Reactor.SetDatagramSize(Context.GetDatagramSize());
 
-			// Initialize RDT-Receiver to receive Request.
-			final Optional<HttpMessage> ReceivedMessage = SelectiveRepeatReceiver.Run(Channel, RemoteSequenceNumber);
-			HttpRequest Request = null;
-			if (ReceivedMessage.isPresent()) {
-				try {
-					LOGGER.log(Level.INFO, "Done receiving request.");
-					Request = (HttpRequest) ReceivedMessage.get();
-				} catch (ClassCastException e) {
-					LOGGER.log(Level.WARNING, "Received message is not a HTTP message, but not a reply.");
+			if (bHalfOpen) {
+				final Boolean bAcked = SendSynAck(Reactor, SynAckPayload, EarlyResponse.isPresent());
+				EndHalfOpen();
+				if (!bAcked) {
+					LOGGER.log(Level.WARNING, "Connection attemp timeout: ACK never received.");
 					return;
 				}
-			} else {
-				LOGGER.log(Level.WARNING, "Received message is not a valid HTTP message.");
-				return;
 			}
 
-			// Get Response from HTTP Protocol.
-			final HttpResponse Response = HttpProtocol.GetResponse(RootPath, Request, false);
+			// Both directions continue from the handshake SEQ. The request in the SYN and
+			// the response in the SYNACK each take the first one.
+			final SequenceSpace Space = Context.GetSequenceSpace();
+			Context.SetSendSequenceNumber(
+					EarlyResponse.isPresent() ? Space.Next(LocalSequenceNumber) : LocalSequenceNumber);
+			Context.SetReceiveSequenceNumber(
+					EarlyResponse.isPresent() ? Space.Next(RemoteSequenceNumber) : RemoteSequenceNumber);
 
-			if (Response.GetError().isEmpty()) {
-				LOGGER.log(Level.INFO, "Sending response.");
-				SelectiveRepeatSender.Run(Channel, RemoteSocketAddress.getAddress(), RemoteSocketAddress.getPort(),
-						LocalSequenceNumber, Response, false);
+			// Serve requests until the client sends FIN. Without keep-alive, only one.
+			if (Context.IsMultiplexed()) {
+				if (!ServeStreams(Reactor, EarlyResponse, EarlyLength, EarlyTotalLength)) {
+					return;
+				}
 			} else {
-				LOGGER.log(Level.WARNING, Response.GetError().get());
-				return;
+				for (;;) {
+					if (EarlyResponse.isPresent()) {
+						// The ACK of the SYNACK also ACKs its part of the response. Send the rest.
+						if (EarlyLength < EarlyTotalLength) {
+							LOGGER.log(Level.INFO, "Sending rest of response.");
+							SelectiveRepeatSender.Run(Reactor, RemoteSocketAddress.getAddress(),
+									RemoteSocketAddress.getPort(), EarlyResponse.get(), EarlyLength, Context);
+						}
+						EarlyResponse = Optional.empty();
+					} else {
+						if (Context.GetPeerFin().isPresent()) {
+							break;
+						}
+
+						// Initialize RDT-Receiver to receive Request.
+						final Optional<HttpMessage> ReceivedMessage = SelectiveRepeatReceiver.Run(Reactor, Context);
+						HttpRequest Request = null;
+						if (ReceivedMessage.isPresent()) {
+							try {
+								LOGGER.log(Level.INFO, "Done receiving request.");
+								Request = (HttpRequest) ReceivedMessage.get();
+							} catch (ClassCastException e) {
+								LOGGER.log(Level.WARNING, "Received message is not a HTTP message, but not a reply.");
+								return;
+							}
+						} else if (Context.GetPeerFin().isPresent()) {
+							break;
+						} else {
+							LOGGER.log(Level.WARNING, "Received message is not a valid HTTP message.");
+							return;
+						}
+
+						// Get Response from HTTP Protocol.
+						final HttpResponse Response = HttpProtocol.GetResponse(RootPath, Request, false);
+
+						if (Response.GetError().isEmpty()) {
+							LOGGER.log(Level.INFO, "Sending response.");
+							SelectiveRepeatSender.Run(Reactor, RemoteSocketAddress.getAddress(),
+									RemoteSocketAddress.getPort(), Response, Context);
+						} else {
+							LOGGER.log(Level.WARNING, Response.GetError().get());
+							return;
+						}
+					}
+					LOGGER.log(Level.INFO, "Done sending response.");
+
+					if (!Context.IsKeepAlive() || Context.GetPeerFin().isPresent()) {
+						break;
+					}
+				}
 			}
-			LOGGER.log(Level.INFO, "Done sending response.");
 
-			// End connection.
+			// End connection. The receiver may already have got the FIN.
 			LOGGER.log(Level.INFO, "Wait for conneciton to close...");
 			Boolean bSuccesBoolean = false;
-			Optional<UdpMessage> Fin1Msg = Optional.empty();
+			Optional<UdpMessage> Fin1Msg = Context.GetPeerFin();
 			for (int i = 0; i < Constants.RETRANSMISSION_ATTEMPTS; i++) {
 				if (Fin1Msg.isEmpty()) {
 					// Receive FIN.
 					LOGGER.log(Level.INFO, "Waiting for FIN on " + LocalSocketAddress.toString() + "...");
-					Fin1Msg = DatagramChannelUtils.Receive(Channel, Constants.DEFAULT_TIMEOUT);
+					Fin1Msg = DatagramChannelUtils.Receive(Reactor, Estimator.GetTimeout());
 					if (Fin1Msg.isEmpty()) {
+						Estimator.Backoff();
 						continue;
 					} else {
 						if (!Fin1Msg.get().IsFin()) {
@@ -144,7 +367,7 @@ public class ServerConnection implements Runnable {
 					continue;
 				}
 				LOGGER.log(Level.INFO, "Sending: " + Ack1Msg.get() + ".");
-				DatagramChannelUtils.Send(Channel, Constants.ROUTER_ADDRESS, Ack1Msg.get());
+				DatagramChannelUtils.Send(Reactor, Constants.ROUTER_ADDRESS, Ack1Msg.get());
 
 				// Send FIN.
 				final Optional<UdpMessage> Fin2Msg = UdpMessage.ConstructFinNew(RemoteSocketAddress.getAddress(),
@@ -154,18 +377,23 @@ public class ServerConnection implements Runnable {
 					continue;
 				}
 				LOGGER.log(Level.INFO, "Sending: " + Fin2Msg.get() + ".");
-				DatagramChannelUtils.Send(Channel, Constants.ROUTER_ADDRESS, Fin2Msg.get());
+				DatagramChannelUtils.Send(Reactor, Constants.ROUTER_ADDRESS, Fin2Msg.get());
 
 				// Receive ACK.
 				LOGGER.log(Level.INFO, "Waiting for ACK on " + LocalSocketAddress.toString() + "...");
-				final Optional<UdpMessage> Ack2Msg = DatagramChannelUtils.Receive(Channel, Constants.DEFAULT_TIMEOUT);
+				final Optional<UdpMessage> Ack2Msg = DatagramChannelUtils.Receive(Reactor, Estimator.GetTimeout());
 				if (Ack2Msg.isEmpty()) {
+					Estimator.Backoff();
 					// If receive nothing, retransmit ACK and FIN.
 					continue;
 				} else {
 					if (Ack2Msg.get().IsFin()) {
 						Fin1Msg = Ack2Msg;
 						continue;
+					} else if (Ack2Msg.get().IsAck()
+							&& Ack2Msg.get().GetAcknowledgmentNumber() == LocalSequenceNumber) {
+						// The ACK of the SYNACK, overtaken by the FIN. Keep waiting.
+						continue;
 					} else {
 						Fin1Msg = Optional.empty();
 					}
@@ -182,10 +410,14 @@ public class ServerConnection implements Runnable {
 			} else {
 				LOGGER.log(Level.WARNING, "Failed to closed connection with: " + RemoteSocketAddress.toString() + ".");
 			}
+			LOGGER.log(Level.INFO, "Statistics: " + Context.GetStatistics().toString() + " "
+					+ Reactor.GetBufferPool().toString());
 		} catch (SocketException e1) {
 			LOGGER.log(Level.WARNING, "ERROR: SocketException: " + e1.toString());
 		} catch (IOException e2) {
 			LOGGER.log(Level.WARNING, "ERROR: IOException: " + e2.toString());
+		} finally {
+			EndHalfOpen();
 		}
 	}
 }
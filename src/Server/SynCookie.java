@@ -0,0 +1,152 @@
+package Server;
+
+import java.net.InetSocketAddress;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import Common.UdpMessage;
+
+// Cookie of a SYNACK sent without keeping any state: a keyed hash of the client
+// and of its SEQ. An ACK that echoes it proves the client got the SYNACK from
+// its own address, so a flood of SYNs from forged addresses costs no memory.
+// The time slot goes into the hash too, so that a cookie is only good for two
+// of them. Within those, a cookie sets up one connection only. Part of the hash
+// is the SEQ of the SYNACK, which has 16 bits in a legacy header, and 32 more
+// bits go in the cookie option. Only clients that negotiate options get a
+// cookie, so the echo always has both.
+class SynCookie {
+
+	private static final String ALGORITHM = "HmacSHA256";
+	private static final int KEY_SIZE = 32;
+	private static final long SLOT_NANOS = 64_000_000_000L;
+	private static final long LIFETIME_NANOS = 2 * SLOT_NANOS;
+	// Clients a cookie was sent to, by hash of their address. Its size is fixed,
+	// whatever the number of SYNs: a collision only makes an address look like
+	// it got one.
+	private static final int ISSUED_SLOT_COUNT = 1 << 16;
+
+	// Used by the thread that receives datagrams only.
+	private final Mac Hmac;
+	private final long[] IssueTimes;
+	// SEQ of the client whose echo set up a connection, until its cookie expires.
+	// Only a client that got the SYNACK gets in, so its size is bounded by the
+	// connections set up in a lifetime, not by the SYNs.
+	private final LinkedHashMap<InetSocketAddress, Redeemed> RedeemedCookies;
+
+	// What a SYNACK with a cookie carries.
+	public static class Issued {
+		public final int SequenceNumber;
+		public final int Mac;
+
+		Issued(int SequenceNumber, int Mac) {
+			this.SequenceNumber = SequenceNumber;
+			this.Mac = Mac;
+		}
+	}
+
+	private static class Redeemed {
+		final int ClientSequenceNumber;
+		final long Time;
+
+		Redeemed(int ClientSequenceNumber, long Time) {
+			this.ClientSequenceNumber = ClientSequenceNumber;
+			this.Time = Time;
+		}
+	}
+
+	public SynCookie() {
+		final byte[] Key = new byte[KEY_SIZE];
+		new SecureRandom().nextBytes(Key);
+		try {
+			Hmac = Mac.getInstance(ALGORITHM);
+			Hmac.init(new SecretKeySpec(Key, ALGORITHM));
+		} catch (GeneralSecurityException e) {
+			// Every Java platform has it.
+			throw new IllegalStateException(ALGORITHM + " is not available.", e);
+		}
+		IssueTimes = new long[ISSUED_SLOT_COUNT];
+		RedeemedCookies = new LinkedHashMap<InetSocketAddress, Redeemed>();
+	}
+
+	public Issued Generate(InetSocketAddress Client, int ClientSequenceNumber) {
+		final long CurrentTime = System.nanoTime();
+		// 0 means never.
+		IssueTimes[GetIssuedSlot(Client)] = CurrentTime | 1;
+		return Compute(Client, ClientSequenceNumber, CurrentTime / SLOT_NANOS);
+	}
+
+	// Whether Client may have got a cookie that is still good.
+	public Boolean WasIssuedTo(InetSocketAddress Client) {
+		final long IssueTime = IssueTimes[GetIssuedSlot(Client)];
+		return IssueTime != 0 && System.nanoTime() - IssueTime < LIFETIME_NANOS;
+	}
+
+	// Check the cookie of an echo, and take it as used if good. Returns false if it
+	// is not, or already set up a connection.
+	public Boolean Redeem(InetSocketAddress Client, int ClientSequenceNumber, int SequenceNumber, int Mac) {
+		if (!Check(Client, ClientSequenceNumber, SequenceNumber, Mac)) {
+			return false;
+		}
+		final long CurrentTime = System.nanoTime();
+		// Oldest first: drop those whose cookie expired.
+		final Iterator<Redeemed> Entries = RedeemedCookies.values().iterator();
+		while (Entries.hasNext() && CurrentTime - Entries.next().Time >= LIFETIME_NANOS) {
+			Entries.remove();
+		}
+		final Redeemed Previous = RedeemedCookies.get(Client);
+		if (Previous != null && Previous.ClientSequenceNumber == ClientSequenceNumber) {
+			return false;
+		}
+		// Keep the insertion order that of the time.
+		RedeemedCookies.remove(Client);
+		RedeemedCookies.put(Client, new Redeemed(ClientSequenceNumber, CurrentTime));
+		return true;
+	}
+
+	// Give back the cookie of a connection that could not be set up, for the
+	// client to echo it again.
+	public void Forget(InetSocketAddress Client) {
+		RedeemedCookies.remove(Client);
+	}
+
+	// Whether the cookie was generated for Client and its SEQ in this slot or the
+	// one before.
+	private Boolean Check(InetSocketAddress Client, int ClientSequenceNumber, int SequenceNumber, int Mac) {
+		final long Slot = System.nanoTime() / SLOT_NANOS;
+		for (long CookieSlot = Slot - 1; CookieSlot <= Slot; CookieSlot++) {
+			final Issued Expected = Compute(Client, ClientSequenceNumber, CookieSlot);
+			if (Expected.SequenceNumber == SequenceNumber && Expected.Mac == Mac) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static int GetIssuedSlot(InetSocketAddress Client) {
+		final int Hash = Client.hashCode() * 0x9E3779B9;
+		return (Hash ^ (Hash >>> 16)) & (ISSUED_SLOT_COUNT - 1);
+	}
+
+	// The SEQ is within that of a legacy SYNACK and never 0, like a random one.
+	private Issued Compute(InetSocketAddress Client, int ClientSequenceNumber, long Slot) {
+		Hmac.update(Client.getAddress().getAddress());
+		Hmac.update((byte) (Client.getPort() >>> 8));
+		Hmac.update((byte) Client.getPort());
+		for (int i = 3; i >= 0; i--) {
+			Hmac.update((byte) (ClientSequenceNumber >>> (8 * i)));
+		}
+		for (int i = 7; i >= 0; i--) {
+			Hmac.update((byte) (Slot >>> (8 * i)));
+		}
+		final byte[] Hash = Hmac.doFinal();
+		final int Value = ((Hash[0] & 0xFF) << 8) | (Hash[1] & 0xFF);
+		final int Mac = ((Hash[2] & 0xFF) << 24) | ((Hash[3] & 0xFF) << 16) | ((Hash[4] & 0xFF) << 8)
+				| (Hash[5] & 0xFF);
+		return new Issued(Value % (UdpMessage.NUMBER_MAX - 1) + 1, Mac);
+	}
+}